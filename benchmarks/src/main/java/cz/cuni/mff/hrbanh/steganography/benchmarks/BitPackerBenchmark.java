@@ -0,0 +1,105 @@
+package cz.cuni.mff.hrbanh.steganography.benchmarks;
+
+import cz.cuni.mff.hrbanh.steganography.BitPacker;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding kernels (BitPacker) on synthetic carriers from 1 to 128 megapixels, for every bitsPerByte,
+ * with a payload filling `fill` of the carrier's capacity. Besides ops/s, the `bytes` counter reports the payload
+ * throughput in bytes per second. Pack and Unpack use the Vector API kernels, PackScalar and UnpackScalar
+ * the scalar ones they fall back to.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xms6g", "-Xmx6g", "--add-modules", "jdk.incubator.vector"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class BitPackerBenchmark {
+    @Param({"1", "2", "3", "4", "5", "6", "7", "8"})
+    public int bitsPerByte;
+
+    @Param({"1", "16", "128"})
+    public int megapixels;
+
+    /**
+     * Fraction of the carrier's capacity used by the payload.
+     */
+    @Param({"1.0"})
+    public double fill;
+
+    private int[] pixels;
+    private byte[] payload;
+    private byte[] extracted;
+
+    /**
+     * Number of payload bytes processed, reported as bytes per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+    }
+
+    @Setup(Level.Trial)
+    public void Setup() throws IOException{
+        pixels = Fixtures.Pixels(megapixels * 1_000_000);
+        long capacity = (long)pixels.length * BitPacker.BitsPerPixel(bitsPerByte) / 8;
+        payload = Fixtures.Payload((int)Math.min(Integer.MAX_VALUE - 8, (long)(capacity * fill)));
+        extracted = new byte[payload.length];
+    }
+
+    @Benchmark
+    public int Pack(Bytes bytes){
+        bytes.bytes += payload.length;
+        return BitPacker.Pack(payload, 0, payload.length, pixels, 0, bitsPerByte, 0);
+    }
+
+    @Benchmark
+    public int PackScalar(Bytes bytes){
+        bytes.bytes += payload.length;
+        return BitPacker.PackScalar(payload, 0, payload.length, pixels, 0, bitsPerByte, 0);
+    }
+
+    @Benchmark
+    public int PackParallel(Bytes bytes){
+        bytes.bytes += payload.length;
+        return BitPacker.PackParallel(payload, 0, payload.length, pixels, 0, bitsPerByte, 0);
+    }
+
+    @Benchmark
+    public byte[] Unpack(Bytes bytes){
+        bytes.bytes += payload.length;
+        BitPacker.Unpack(pixels, 0, bitsPerByte, 0, extracted, 0, extracted.length);
+        return extracted;
+    }
+
+    @Benchmark
+    public byte[] UnpackScalar(Bytes bytes){
+        bytes.bytes += payload.length;
+        BitPacker.UnpackScalar(pixels, 0, bitsPerByte, 0, extracted, 0, extracted.length);
+        return extracted;
+    }
+
+    @Benchmark
+    public byte[] UnpackParallel(Bytes bytes){
+        bytes.bytes += payload.length;
+        BitPacker.UnpackParallel(pixels, 0, bitsPerByte, 0, extracted, 0, extracted.length);
+        return extracted;
+    }
+}
@@ -0,0 +1,139 @@
+package cz.cuni.mff.hrbanh.steganography.benchmarks;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Inputs shared by the benchmarks. The bundled resources (stromovka.jpeg, red.png, shakespeare.txt, ...) are copied
+ * from the classpath to a temporary directory, synthetic carriers named "synthetic-Nmp.png" are generated there
+ * on first use. All random data is generated from fixed seeds, so every run uses the same inputs.
+ */
+final class Fixtures {
+    private static final Pattern SYNTHETIC = Pattern.compile("synthetic-(\\d+)mp\\.png");
+    private static final Map<String, Path> files = new HashMap<>();
+    private static Path dir;
+
+    private Fixtures(){}
+
+    /**
+     * Get a path to an image: one of the bundled resources or a synthetic carrier of N megapixels.
+     * @param name file name of a resource or "synthetic-Nmp.png"
+     * @return path to the image in the temporary directory
+     * @throws IOException if the image cannot be created
+     */
+    static synchronized Path Image(String name) throws IOException{
+        Path path = files.get(name);
+        if (path != null){
+            return path;
+        }
+        Matcher m = SYNTHETIC.matcher(name);
+        if (m.matches()){
+            path = Dir().resolve(name);
+            BufferedImage img = SyntheticImage(Integer.parseInt(m.group(1)) * 1_000_000L);
+            ImageIO.write(img, "png", path.toFile());
+        } else {
+            path = Resource(name);
+        }
+        files.put(name, path);
+        return path;
+    }
+
+    /**
+     * Copy a bundled resource to the temporary directory.
+     */
+    static synchronized Path Resource(String name) throws IOException{
+        Path path = Dir().resolve(name);
+        try (InputStream in = Fixtures.class.getResourceAsStream("/" + name)){
+            if (in == null){
+                throw new IOException("Missing resource " + name);
+            }
+            Files.copy(in, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return path;
+    }
+
+    /**
+     * Create a payload of `length` bytes by repeating shakespeare.txt, a realistic text file.
+     */
+    static byte[] Payload(int length) throws IOException{
+        byte[] text;
+        try (InputStream in = Fixtures.class.getResourceAsStream("/shakespeare.txt")){
+            if (in == null){
+                throw new IOException("Missing resource shakespeare.txt");
+            }
+            text = in.readAllBytes();
+        }
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i += text.length){
+            System.arraycopy(text, 0, payload, i, Math.min(text.length, length - i));
+        }
+        return payload;
+    }
+
+    /**
+     * Random opaque ARGB pixels, as a decoded photo without alpha would look like to the encoder.
+     */
+    static int[] Pixels(int count){
+        Random random = new Random(42);
+        int[] pixels = new int[count];
+        for (int i = 0; i < count; i++){
+            pixels[i] = 0xFF000000 | random.nextInt(1 << 24);
+        }
+        return pixels;
+    }
+
+    /**
+     * Create a roughly square RGB image with `pixels` pixels: a smooth gradient with noise, so that it neither
+     * compresses trivially nor is pure noise.
+     */
+    private static BufferedImage SyntheticImage(long pixels){
+        int width = (int)Math.sqrt(pixels);
+        int height = (int)(pixels / width);
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(42);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++){
+            for (int x = 0; x < width; x++){
+                int r = (x * 255 / width + random.nextInt(16)) & 0xFF;
+                int g = (y * 255 / height + random.nextInt(16)) & 0xFF;
+                int b = ((x + y) * 127 / (width + height) + random.nextInt(16)) & 0xFF;
+                row[x] = r << 16 | g << 8 | b;
+            }
+            img.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return img;
+    }
+
+    /**
+     * Get the temporary directory, creating it on first use. It is deleted with all its files (including images
+     * written by the benchmarks) when the JVM exits, deleteOnExit would not delete a directory which is not empty.
+     */
+    private static Path Dir() throws IOException{
+        if (dir == null){
+            Path created = Files.createTempDirectory("steg-bench");
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> Delete(created)));
+            dir = created;
+        }
+        return dir;
+    }
+
+    private static void Delete(Path directory){
+        try (Stream<Path> paths = Files.walk(directory)){
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e){
+            // nothing to clean up
+        }
+    }
+}
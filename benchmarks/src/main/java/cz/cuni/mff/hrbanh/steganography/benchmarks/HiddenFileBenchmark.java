@@ -0,0 +1,80 @@
+package cz.cuni.mff.hrbanh.steganography.benchmarks;
+
+import cz.cuni.mff.hrbanh.steganography.HiddenFile;
+import cz.cuni.mff.hrbanh.steganography.HiddenFileHeader;
+import cz.cuni.mff.hrbanh.steganography.StegImage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hiding and extracting a payload in an already decoded carrier through HiddenFile, including the header and
+ * block-wise streaming. The payload is shakespeare.txt repeated to fill `fill` of the carrier's capacity.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g", "--add-modules", "jdk.incubator.vector"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HiddenFileBenchmark {
+    @Param({"1", "2", "3", "4", "5", "6", "7", "8"})
+    public int bitsPerByte;
+
+    @Param({"stromovka.jpeg", "synthetic-16mp.png"})
+    public String carrier;
+
+    @Param({"1.0"})
+    public double fill;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private StegImage img;
+    private StegImage steg;
+    private HiddenFileHeader header;
+    private byte[] payload;
+
+    @Setup(Level.Trial)
+    public void Setup() throws IOException{
+        String path = Fixtures.Image(carrier).toString();
+        img = new StegImage(path);
+        payload = Fixtures.Payload((int)Math.min(Integer.MAX_VALUE - 8,
+                (long)(img.GetCapacity()[bitsPerByte - 1] * fill)));
+        steg = new StegImage(path);
+        Hide(steg);
+        header = HiddenFileHeader.Read(steg);
+    }
+
+    private void Hide(StegImage target) throws IOException{
+        HiddenFile hf = new HiddenFile("shakespeare.txt", new ByteArrayInputStream(payload), payload.length,
+                bitsPerByte);
+        hf.HideInImage(target, parallel);
+    }
+
+    @Benchmark
+    public int[] HideInImage() throws IOException{
+        Hide(img);
+        return img.pixels;
+    }
+
+    @Benchmark
+    public HiddenFileHeader ExtractFromImage() throws IOException{
+        HiddenFile.ExtractFromImage(steg, header, OutputStream.nullOutputStream(), parallel);
+        return header;
+    }
+}
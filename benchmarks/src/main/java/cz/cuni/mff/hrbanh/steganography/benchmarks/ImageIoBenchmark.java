@@ -0,0 +1,60 @@
+package cz.cuni.mff.hrbanh.steganography.benchmarks;
+
+import cz.cuni.mff.hrbanh.steganography.StegImage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding images into a StegImage (StegImage.Load) and encoding them as png (StegImage.Write), for the bundled
+ * sample images and synthetic carriers. Larger synthetic carriers can be selected with
+ * -p image=synthetic-128mp.png.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+public class ImageIoBenchmark {
+    @Param({"stromovka.jpeg", "red.png", "synthetic-1mp.png", "synthetic-16mp.png"})
+    public String image;
+
+    private String path;
+    private StegImage img;
+
+    @Setup(Level.Trial)
+    public void Setup() throws IOException{
+        path = Fixtures.Image(image).toString();
+        img = new StegImage(path);
+    }
+
+    @Benchmark
+    public StegImage Load() throws IOException{
+        return new StegImage(path);
+    }
+
+    @Benchmark
+    public StegImage LoadLazy() throws IOException{
+        return new StegImage(path, true);
+    }
+
+    @Benchmark
+    public StegImage Write() throws IOException{
+        img.Write(OutputStream.nullOutputStream());
+        return img;
+    }
+}
@@ -0,0 +1,312 @@
+package cz.cuni.mff.hrbanh.steganography;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs many hide and extract jobs inside one JVM on a pool of worker threads.
+ * Jobs are read from a manifest file with one job per line:
+ *      PATH_TO_IMAGE PATH_TO_FILE BITS_PER_BYTE [COMPRESSION_LEVEL]
+ *                                                  - hide the file in the image, compressed if a level is given;
+ *                                                    BITS_PER_BYTE "auto" picks the lowest value the file fits with
+ *      PATH_TO_IMAGE                               - extract a file from the image
+ * Empty lines and lines starting with '#' are ignored. Relative paths are resolved against the current directory.
+ * Alternatively the jobs are created for every image in a directory.
+ * Every job uses the same code as a single command (HiddenFile, ImageCache.Open), so hidden images are saved with the
+ * steg_ prefix (by the fast PngWriter settings, PAM images are copied and mapped). Extracted files are saved next to
+ * their image with the extracted_ prefix followed by the image name (see ExtractPrefix), so that jobs on images hiding
+ * files of the same name do not overwrite each other's output. Jobs writing the same output as an earlier job are
+ * rejected.
+ * Each job runs on one thread, the parallelism comes from running several jobs at once.
+ */
+public final class BatchRunner {
+    /**
+     * File extensions of images picked up from a directory.
+     */
+    private static final List<String> IMAGE_EXTENSIONS = Arrays.asList(".png", ".jpg", ".jpeg", ".bmp", ".gif",
+            ".pam");
+    /**
+     * Png encoder for hidden images. Jobs already run in parallel, so each image is compressed on one thread,
+     * with a fast compression level because a batch is limited by the total time rather than by file sizes.
+     */
+    private static final PngWriter WRITER = new PngWriter(1, PngWriter.Filter.UP, true, false);
+    /**
+     * Images are not kept between jobs, each job loads its image lazily (or maps a PAM image).
+     */
+    private static final ImageCache IMAGES = new ImageCache(0);
+
+    /**
+     * One hide or extract job.
+     */
+    public static final class Job {
+        public final String imgPath;
+        /**
+         * File to be hidden, null for an extract job.
+         */
+        public final String filePath;
+        /**
+         * Number of bits per byte, or HidePlan.AUTO to plan it before the image is loaded.
+         */
+        public final int bitsPerByte;
+        /**
+         * Deflate compression level of the hidden file, or HiddenFile.UNCOMPRESSED.
+         */
+        public final int compressionLevel;
+
+        public Job(String imgPath, String filePath, int bitsPerByte){
+            this(imgPath, filePath, bitsPerByte, HiddenFile.UNCOMPRESSED);
+        }
+
+        public Job(String imgPath, String filePath, int bitsPerByte, int compressionLevel){
+            this.imgPath = imgPath;
+            this.filePath = filePath;
+            this.bitsPerByte = bitsPerByte;
+            this.compressionLevel = compressionLevel;
+        }
+
+        @Override
+        public String toString(){
+            return filePath == null ? "extract " + imgPath :
+                    "hide " + filePath + " in " + imgPath + " (" +
+                    (bitsPerByte == HidePlan.AUTO ? "auto" : String.valueOf(bitsPerByte)) + " bpB" +
+                    (compressionLevel != HiddenFile.UNCOMPRESSED ? ", level " + compressionLevel : "") + ")";
+        }
+    }
+
+    /**
+     * Outcome of a job.
+     */
+    public static final class Result {
+        public final Job job;
+        /**
+         * Error message, null if the job succeeded.
+         */
+        public final String error;
+        /**
+         * Number of hidden or extracted bytes.
+         */
+        public final long bytes;
+        public final long nanos;
+
+        Result(Job job, String error, long bytes, long nanos){
+            this.job = job;
+            this.error = error;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        public boolean Succeeded(){
+            return error == null;
+        }
+    }
+
+    private BatchRunner(){}
+
+    /**
+     * Read jobs from a manifest file, see the class docstring for its format.
+     * @param manifestPath path to the manifest
+     * @return jobs in the order of the manifest
+     * @throws IOException if the manifest cannot be read
+     * @throws IllegalArgumentException if a line of the manifest is malformed
+     */
+    public static List<Job> ReadManifest(String manifestPath) throws IOException{
+        List<Job> jobs = new ArrayList<>();
+        List<String> lines = Files.readAllLines(Path.of(manifestPath));
+        for (int i = 0; i < lines.size(); i++){
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")){
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            if (parts.length == 1){
+                jobs.add(new Job(parts[0], null, 0));
+            } else if (parts.length == 3){
+                jobs.add(new Job(parts[0], parts[1], HidePlan.ParseBitsPerByte(parts[2])));
+            } else if (parts.length == 4){
+                jobs.add(new Job(parts[0], parts[1], HidePlan.ParseBitsPerByte(parts[2]), Integer.parseInt(parts[3])));
+            } else {
+                throw new IllegalArgumentException("Malformed line " + (i+1) + " of manifest " + manifestPath);
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Create a job for every image in a directory. If `filePath` is null, files are extracted from the images,
+     * otherwise `filePath` is hidden in every image. Images with the steg_ prefix are skipped when hiding,
+     * so that outputs of a previous run are not processed again.
+     * @param dirPath path to the directory
+     * @param filePath file to be hidden in every image, or null to extract
+     * @param bitsPerByte number of bits per byte used for hiding, or HidePlan.AUTO
+     * @return jobs sorted by image name
+     * @throws IOException if the directory cannot be listed
+     */
+    public static List<Job> ListDirectory(String dirPath, String filePath, int bitsPerByte) throws IOException{
+        File[] files = new File(dirPath).listFiles();
+        if (files == null){
+            throw new IOException("Cannot list directory " + dirPath);
+        }
+        Arrays.sort(files);
+        List<Job> jobs = new ArrayList<>();
+        for (File file : files){
+            String name = file.getName();
+            int dot = name.lastIndexOf('.');
+            if (!file.isFile() || dot < 0 || !IMAGE_EXTENSIONS.contains(name.substring(dot).toLowerCase(Locale.ROOT))){
+                continue;
+            }
+            if (filePath != null && name.startsWith("steg_")){
+                continue;
+            }
+            jobs.add(new Job(file.getPath(), filePath, bitsPerByte));
+        }
+        return jobs;
+    }
+
+    /**
+     * Run all jobs on a fixed pool of `threads` worker threads. A failing job does not stop the other jobs.
+     * @param jobs jobs to run
+     * @param threads number of worker threads
+     * @return results in the order of `jobs`
+     */
+    public static List<Result> Run(List<Job> jobs, int threads){
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            Map<Path, Integer> outputs = new HashMap<>();
+            List<Future<Result>> futures = new ArrayList<>();
+            List<String> rejected = new ArrayList<>();
+            for (int i = 0; i < jobs.size(); i++){
+                Job job = jobs.get(i);
+                Path output = Path.of(OutputPath(job)).toAbsolutePath().normalize();
+                Integer previous = outputs.putIfAbsent(output, i);
+                if (previous != null){
+                    futures.add(null);
+                    rejected.add("output " + output + " is also written by job " + (previous + 1));
+                } else {
+                    futures.add(pool.submit(() -> RunJob(job)));
+                    rejected.add(null);
+                }
+            }
+            List<Result> results = new ArrayList<>();
+            for (int i = 0; i < futures.size(); i++){
+                if (futures.get(i) == null){
+                    results.add(new Result(jobs.get(i), rejected.get(i), 0, 0));
+                    continue;
+                }
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e){
+                    results.add(new Result(jobs.get(i), e.getCause().toString(), 0, 0));
+                } catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    results.add(new Result(jobs.get(i), "interrupted", 0, 0));
+                }
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Get the prefix of the files extracted from an image by a batch job: the extracted_ prefix and the image name
+     * without its extension, in the directory of the image. E.g. file a.txt hidden in dir/steg_cat.png is saved
+     * as dir/extracted_steg_cat_a.txt.
+     * @param imgPath path to the image
+     * @return prefix of the output paths
+     */
+    public static String ExtractPrefix(String imgPath){
+        int nameStart = imgPath.lastIndexOf(File.separator) + 1;
+        int dot = imgPath.lastIndexOf('.');
+        String name = imgPath.substring(nameStart, dot > nameStart ? dot : imgPath.length());
+        return imgPath.substring(0, nameStart) + HiddenFile.OUTPUT_PREFIX + name + "_";
+    }
+
+    /**
+     * Path a job writes to, the prefix of the extracted files for an extract job.
+     */
+    private static String OutputPath(Job job){
+        return job.filePath == null ? ExtractPrefix(job.imgPath) : Carrier.OutputPath(job.imgPath);
+    }
+
+    /**
+     * Hide a file in an image and save it, a copy of a PAM image is deleted if the file cannot be hidden.
+     */
+    private static void Hide(HiddenFile hf, String imgPath) throws IOException{
+        try (Carrier img = IMAGES.OpenCopy(imgPath)){
+            hf.HideInImage(img, false);
+            if (img instanceof StegImage){
+                ((StegImage)img).Write(WRITER);
+            }
+        } catch (IOException | RuntimeException e){
+            if (MappedCarrier.IsPam(imgPath)){
+                Files.deleteIfExists(Path.of(MappedCarrier.OutputPath(imgPath)));
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Run a single job and measure it.
+     */
+    private static Result RunJob(Job job){
+        long start = System.nanoTime();
+        try {
+            long bytes;
+            if (job.filePath == null){
+                try (Carrier img = IMAGES.Open(job.imgPath)){
+                    bytes = HiddenFile.ExtractToFile(img, ExtractPrefix(job.imgPath), false).dataLength;
+                }
+            } else {
+                int bitsPerByte = job.bitsPerByte;
+                if (bitsPerByte == HidePlan.AUTO){
+                    bitsPerByte = HidePlan.ForFile(job.imgPath, job.filePath, job.compressionLevel).bitsPerByte;
+                } else if (MappedCarrier.IsPam(job.imgPath)){
+                    HidePlan.ForFile(job.imgPath, job.filePath, job.compressionLevel).CheckFits(bitsPerByte);
+                }
+                HiddenFile hf = new HiddenFile(job.filePath, bitsPerByte, job.compressionLevel);
+                Hide(hf, job.imgPath);
+                bytes = hf.GetDataLength();
+            }
+            return new Result(job, null, bytes, System.nanoTime() - start);
+        } catch (IOException | RuntimeException e){
+            String message = e.getMessage() != null ? e.getMessage() : e.toString();
+            return new Result(job, message, 0, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Print the outcome of every job followed by a summary with the total throughput.
+     * @param results results returned by Run
+     * @param elapsedNanos wall-clock time of the whole batch
+     */
+    public static void PrintReport(List<Result> results, long elapsedNanos){
+        long bytes = 0;
+        int failed = 0;
+        for (Result result : results){
+            if (result.Succeeded()){
+                bytes += result.bytes;
+                System.out.printf(Locale.ROOT, "++++ OK     %s (%d B, %.1f ms)%n",
+                        result.job, result.bytes, result.nanos / 1e6);
+            } else {
+                failed++;
+                System.out.printf(Locale.ROOT, "---- FAILED %s: %s%n", result.job, result.error);
+            }
+        }
+        double seconds = Math.max(elapsedNanos, 1) / 1e9;
+        System.out.printf(Locale.ROOT, "++++ %d jobs, %d succeeded, %d failed in %.2f s " +
+                        "(%.1f jobs/s, %.2f MB/s)%n", results.size(), results.size() - failed, failed, seconds,
+                results.size() / seconds, bytes / seconds / (1024 * 1024));
+    }
+}
@@ -0,0 +1,353 @@
+package cz.cuni.mff.hrbanh.steganography;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Engine for spreading bytes of a hidden file across the least-significant bits of ARGB pixels and gathering them back.
+ * With `bitsPerByte` encoding every pixel carries a group of 4 * bitsPerByte consecutive bits of the data stream:
+ * the lowest bitsPerByte bits of the group go to the least-significant bits of byte 0 of the pixel (B), the next
+ * bitsPerByte bits to byte 1 (G), then byte 2 (R) and byte 3 (A). Bits of the data stream are taken from the least
+ * significant bit of each data byte upwards.
+ * Instead of setting one bit per iteration, the whole group of a pixel is moved at once using masks and shifts
+ * precomputed for every bitsPerByte, so each pixel is updated in a few operations.
+ * Two consecutive pixels always carry exactly bitsPerByte bytes, so a data stream starting at a pixel boundary is
+ * byte-aligned again on every even pixel.
+ * Because of that the stream can be split at every multiple of bitsPerByte bytes into parts which touch disjoint
+ * pixels. PackParallel and UnpackParallel use this to process the parts concurrently in the ForkJoinPool.
+ * Pack and Unpack process the pixel pairs in the middle of the data with the Vector API kernels of VectorPacker
+ * when the jdk.incubator.vector module is available (`java --add-modules jdk.incubator.vector`), and with
+ * the scalar kernels PackScalar and UnpackScalar otherwise. Both give identical results.
+ */
+public final class BitPacker {
+    /**
+     * LOW_MASK[b] - mask of the `b` least-significant bits of a byte.
+     */
+    private static final int[] LOW_MASK = new int[9];
+    /**
+     * CHANNEL_MASK[b] - mask of the `b` least-significant bits of each of the 4 bytes of a pixel.
+     */
+    private static final int[] CHANNEL_MASK = new int[9];
+
+    static {
+        for (int b = 1; b <= 8; b++){
+            LOW_MASK[b] = (1 << b) - 1;
+            CHANNEL_MASK[b] = LOW_MASK[b] * 0x01010101;
+        }
+    }
+
+    /**
+     * Parts of the data stream smaller than this (in bytes) are not split any further by the parallel methods.
+     */
+    static final int PARALLEL_THRESHOLD = 1 << 18;
+    /**
+     * Parts of the data stream smaller than this (in bytes) are always processed by the scalar kernels.
+     */
+    static final int VECTOR_THRESHOLD = 256;
+    /**
+     * Whether Pack and Unpack use the Vector API kernels. Requires the jdk.incubator.vector module, they can be turned
+     * off by setting the system property steganography.scalar to true.
+     */
+    public static final boolean VECTORIZED = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent() &&
+            !Boolean.getBoolean("steganography.scalar");
+
+    private BitPacker(){}
+
+    /**
+     * Number of data bits stored in one pixel using `bitsPerByte` encoding.
+     * @param bitsPerByte number of least-significant bits used in each byte of a pixel (1-8)
+     * @return number of bits per pixel
+     */
+    public static int BitsPerPixel(int bitsPerByte){
+        return 4 * bitsPerByte;
+    }
+
+    /**
+     * Number of pixels needed to store `bytes` bytes using `bitsPerByte` encoding.
+     * @param bytes number of bytes
+     * @param bitsPerByte number of least-significant bits used in each byte of a pixel (1-8)
+     * @return number of pixels, the last one may be used only partially
+     */
+    public static long PixelsFor(long bytes, int bitsPerByte){
+        long bitsPerPixel = BitsPerPixel(bitsPerByte);
+        return (bytes * 8 + bitsPerPixel - 1) / bitsPerPixel;
+    }
+
+    /**
+     * Move the lowest 4 * bitsPerByte bits of `group` to the least-significant bits of the 4 bytes of a pixel.
+     * @param group bits to be spread
+     * @param bitsPerByte number of bits per byte of a pixel
+     * @return spread bits, all other bits are 0
+     */
+    static int Spread(int group, int bitsPerByte){
+        if (bitsPerByte == 8){
+            return group;
+        }
+        int mask = LOW_MASK[bitsPerByte];
+        return (group & mask) |
+                ((group >>> bitsPerByte & mask) << 8) |
+                ((group >>> 2 * bitsPerByte & mask) << 16) |
+                ((group >>> 3 * bitsPerByte & mask) << 24);
+    }
+
+    /**
+     * Inverse of Spread. Collect the least-significant bits of the 4 bytes of a pixel into one group.
+     * @param pixel ARGB pixel
+     * @param bitsPerByte number of bits per byte of a pixel
+     * @return group of 4 * bitsPerByte bits
+     */
+    static int Gather(int pixel, int bitsPerByte){
+        if (bitsPerByte == 8){
+            return pixel;
+        }
+        int mask = LOW_MASK[bitsPerByte];
+        return (pixel & mask) |
+                ((pixel >>> 8 & mask) << bitsPerByte) |
+                ((pixel >>> 16 & mask) << 2 * bitsPerByte) |
+                ((pixel >>> 24 & mask) << 3 * bitsPerByte);
+    }
+
+    /**
+     * Hide `length` bytes of `src` starting at `offset` in `pixels`. The data stream starts at pixel `firstPixel`
+     * and the bytes are written at position `streamOffset` (in bytes) of that stream, so a stream can be written
+     * in several calls. Bits of pixels not covered by the written bytes are left untouched.
+     * @param src data to be hidden
+     * @param offset index of the first byte of `src` to be hidden
+     * @param length number of bytes to be hidden
+     * @param pixels ARGB pixels of the image
+     * @param firstPixel pixel where the data stream starts
+     * @param bitsPerByte number of least-significant bits used in each byte of a pixel (1-8)
+     * @param streamOffset position of the first written byte in the data stream
+     * @return index of the pixel following the last modified pixel
+     * @throws IllegalArgumentException if the bytes do not fit into the pixels
+     */
+    public static int Pack(byte[] src, int offset, int length, int[] pixels, int firstPixel, int bitsPerByte,
+                           long streamOffset){
+        if (!VECTORIZED || length < VECTOR_THRESHOLD){
+            return PackScalar(src, offset, length, pixels, firstPixel, bitsPerByte, streamOffset);
+        }
+        if (firstPixel + PixelsFor(streamOffset + length, bitsPerByte) > pixels.length){
+            throw new IllegalArgumentException("Image capacity is smaller than the hidden file size.");
+        }
+        // bytes before the first pixel pair boundary and after the last one are hidden by the scalar kernel
+        int head = (int)((bitsPerByte - streamOffset % bitsPerByte) % bitsPerByte);
+        int pairs = (length - head) / bitsPerByte;
+        PackScalar(src, offset, head, pixels, firstPixel, bitsPerByte, streamOffset);
+        VectorPacker.PackPairs(src, offset + head, pairs, pixels,
+                (int)(firstPixel + (streamOffset + head) / bitsPerByte * 2), bitsPerByte);
+        int done = head + pairs * bitsPerByte;
+        return PackScalar(src, offset + done, length - done, pixels, firstPixel, bitsPerByte, streamOffset + done);
+    }
+
+    /**
+     * Scalar kernel of Pack, which moves the bits of one pixel at a time through a bit accumulator.
+     * @return index of the pixel following the last modified pixel
+     * @throws IllegalArgumentException if the bytes do not fit into the pixels
+     */
+    public static int PackScalar(byte[] src, int offset, int length, int[] pixels, int firstPixel, int bitsPerByte,
+                                 long streamOffset){
+        int groupBits = BitsPerPixel(bitsPerByte);
+        long startBit = streamOffset * 8;
+        int p = (int)(firstPixel + startBit / groupBits);
+        if (length == 0){
+            return p;
+        }
+        if (firstPixel + PixelsFor(streamOffset + length, bitsPerByte) > pixels.length){
+            throw new IllegalArgumentException("Image capacity is smaller than the hidden file size.");
+        }
+        int clear = CHANNEL_MASK[bitsPerByte];
+        long groupMask = (1L << groupBits) - 1;
+        int skip = (int)(startBit % groupBits);     // bits of the first pixel which belong to previous bytes
+        long acc = 0;                               // bits read from `src` and not yet written
+        int accBits = skip;
+        int i = offset;
+        int end = offset + length;
+
+        // first pixel is written only partially when the stream position is not aligned to a pixel
+        if (skip != 0){
+            while (accBits < groupBits && i < end){
+                acc |= (long)(src[i++] & 0xFF) << accBits;
+                accBits += 8;
+            }
+            int n = Math.min(accBits, groupBits);
+            WritePartial(pixels, p++, (int)acc, (int)(((1L << n) - 1) & ~((1L << skip) - 1)), bitsPerByte);
+            acc >>>= n;
+            accBits -= n;
+        }
+        while (true){
+            while (accBits < groupBits && i < end){
+                acc |= (long)(src[i++] & 0xFF) << accBits;
+                accBits += 8;
+            }
+            if (accBits < groupBits){       // all bytes were read
+                break;
+            }
+            pixels[p] = (pixels[p] & ~clear) | Spread((int)(acc & groupMask), bitsPerByte);
+            p++;
+            acc >>>= groupBits;
+            accBits -= groupBits;
+        }
+        // remaining bits do not fill the whole pixel
+        if (accBits > 0){
+            WritePartial(pixels, p++, (int)acc, (int)((1L << accBits) - 1), bitsPerByte);
+        }
+        return p;
+    }
+
+    /**
+     * Write only the bits of `group` selected by `groupMask` into pixel `p`.
+     */
+    private static void WritePartial(int[] pixels, int p, int group, int groupMask, int bitsPerByte){
+        int mask = Spread(groupMask, bitsPerByte);
+        pixels[p] = (pixels[p] & ~mask) | (Spread(group, bitsPerByte) & mask);
+    }
+
+    /**
+     * Inverse of Pack. Recover `length` bytes at position `streamOffset` of the data stream starting at pixel
+     * `firstPixel` and store them in `dst` starting at `offset`.
+     * @param pixels ARGB pixels of the image
+     * @param firstPixel pixel where the data stream starts
+     * @param bitsPerByte number of least-significant bits used in each byte of a pixel (1-8)
+     * @param streamOffset position of the first recovered byte in the data stream
+     * @param dst array for the recovered bytes
+     * @param offset index of `dst` where the first recovered byte is stored
+     * @param length number of bytes to recover
+     * @throws IllegalArgumentException if the requested bytes are outside the image
+     */
+    public static void Unpack(int[] pixels, int firstPixel, int bitsPerByte, long streamOffset,
+                              byte[] dst, int offset, int length){
+        if (!VECTORIZED || length < VECTOR_THRESHOLD){
+            UnpackScalar(pixels, firstPixel, bitsPerByte, streamOffset, dst, offset, length);
+            return;
+        }
+        if (firstPixel + PixelsFor(streamOffset + length, bitsPerByte) > pixels.length){
+            throw new IllegalArgumentException("Requested data is outside of the image.");
+        }
+        int head = (int)((bitsPerByte - streamOffset % bitsPerByte) % bitsPerByte);
+        int pairs = (length - head) / bitsPerByte;
+        UnpackScalar(pixels, firstPixel, bitsPerByte, streamOffset, dst, offset, head);
+        VectorPacker.UnpackPairs(pixels, (int)(firstPixel + (streamOffset + head) / bitsPerByte * 2), bitsPerByte,
+                dst, offset + head, pairs);
+        int done = head + pairs * bitsPerByte;
+        UnpackScalar(pixels, firstPixel, bitsPerByte, streamOffset + done, dst, offset + done, length - done);
+    }
+
+    /**
+     * Scalar kernel of Unpack, which moves the bits of one pixel at a time through a bit accumulator.
+     * @throws IllegalArgumentException if the requested bytes are outside the image
+     */
+    public static void UnpackScalar(int[] pixels, int firstPixel, int bitsPerByte, long streamOffset,
+                                    byte[] dst, int offset, int length){
+        if (length == 0){
+            return;
+        }
+        if (firstPixel + PixelsFor(streamOffset + length, bitsPerByte) > pixels.length){
+            throw new IllegalArgumentException("Requested data is outside of the image.");
+        }
+        int groupBits = BitsPerPixel(bitsPerByte);
+        long startBit = streamOffset * 8;
+        int p = (int)(firstPixel + startBit / groupBits);
+        int skip = (int)(startBit % groupBits);
+        long acc = 0;
+        int accBits = 0;
+        if (skip != 0){
+            acc = (Gather(pixels[p++], bitsPerByte) & 0xFFFFFFFFL) >>> skip;
+            accBits = groupBits - skip;
+        }
+        int end = offset + length;
+        for (int i = offset; i < end; i++){
+            while (accBits < 8){
+                acc |= (Gather(pixels[p++], bitsPerByte) & 0xFFFFFFFFL) << accBits;
+                accBits += groupBits;
+            }
+            dst[i] = (byte)acc;
+            acc >>>= 8;
+            accBits -= 8;
+        }
+    }
+
+    /**
+     * Same as Pack, but large data is split into parts which are hidden concurrently in the common ForkJoinPool.
+     * The result is identical to Pack.
+     * @return index of the pixel following the last modified pixel
+     * @throws IllegalArgumentException if the bytes do not fit into the pixels
+     */
+    public static int PackParallel(byte[] src, int offset, int length, int[] pixels, int firstPixel, int bitsPerByte,
+                                   long streamOffset){
+        if (length <= PARALLEL_THRESHOLD){
+            return Pack(src, offset, length, pixels, firstPixel, bitsPerByte, streamOffset);
+        }
+        if (firstPixel + PixelsFor(streamOffset + length, bitsPerByte) > pixels.length){
+            throw new IllegalArgumentException("Image capacity is smaller than the hidden file size.");
+        }
+        ForkJoinPool.commonPool().invoke(new Task(true, src, offset, length, pixels, firstPixel, bitsPerByte,
+                streamOffset));
+        return (int)(firstPixel + PixelsFor(streamOffset + length, bitsPerByte));
+    }
+
+    /**
+     * Same as Unpack, but large data is split into parts which are recovered concurrently in the common
+     * ForkJoinPool.
+     * @throws IllegalArgumentException if the requested bytes are outside the image
+     */
+    public static void UnpackParallel(int[] pixels, int firstPixel, int bitsPerByte, long streamOffset,
+                                      byte[] dst, int offset, int length){
+        if (length <= PARALLEL_THRESHOLD){
+            Unpack(pixels, firstPixel, bitsPerByte, streamOffset, dst, offset, length);
+            return;
+        }
+        if (firstPixel + PixelsFor(streamOffset + length, bitsPerByte) > pixels.length){
+            throw new IllegalArgumentException("Requested data is outside of the image.");
+        }
+        ForkJoinPool.commonPool().invoke(new Task(false, dst, offset, length, pixels, firstPixel, bitsPerByte,
+                streamOffset));
+    }
+
+    /**
+     * Packs or unpacks a part of the data stream, splitting it in halves while it is larger than PARALLEL_THRESHOLD.
+     * The split point is a multiple of bitsPerByte bytes of the stream, so that both halves start and end on
+     * a pixel boundary and never modify the same pixel.
+     */
+    private static final class Task extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean pack;
+        private final byte[] data;
+        private final int offset;
+        private final int length;
+        private final int[] pixels;
+        private final int firstPixel;
+        private final int bitsPerByte;
+        private final long streamOffset;
+
+        Task(boolean pack, byte[] data, int offset, int length, int[] pixels, int firstPixel, int bitsPerByte,
+             long streamOffset){
+            this.pack = pack;
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.pixels = pixels;
+            this.firstPixel = firstPixel;
+            this.bitsPerByte = bitsPerByte;
+            this.streamOffset = streamOffset;
+        }
+
+        @Override
+        protected void compute(){
+            // round the middle of the part up to the next pixel boundary
+            long split = streamOffset + length / 2;
+            split += (bitsPerByte - split % bitsPerByte) % bitsPerByte;
+            int left = (int)(split - streamOffset);
+            if (length <= PARALLEL_THRESHOLD || left >= length){
+                if (pack){
+                    Pack(data, offset, length, pixels, firstPixel, bitsPerByte, streamOffset);
+                } else {
+                    Unpack(pixels, firstPixel, bitsPerByte, streamOffset, data, offset, length);
+                }
+                return;
+            }
+            invokeAll(new Task(pack, data, offset, left, pixels, firstPixel, bitsPerByte, streamOffset),
+                    new Task(pack, data, offset + left, length - left, pixels, firstPixel, bitsPerByte, split));
+        }
+    }
+}
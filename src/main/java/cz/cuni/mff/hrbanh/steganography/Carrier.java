@@ -0,0 +1,50 @@
+package cz.cuni.mff.hrbanh.steganography;
+
+import java.io.Closeable;
+
+/**
+ * Image whose ARGB pixels carry a hidden file. The pixels are accessed only through Pack and Unpack, which work
+ * like the methods of BitPacker with the same name, so a carrier does not need to keep all pixels in one array.
+ * Implemented by StegImage (pixels decoded into memory) and MappedCarrier (pixels mapped from an uncompressed file).
+ * Carriers are opened by ImageCache.Open and OpenCopy, which pick the implementation by the extension of the image.
+ * A carrier has to be closed, so that a MappedCarrier writes its pixels back and releases the file.
+ */
+public interface Carrier extends Closeable {
+    /**
+     * Get the path an image with a hidden file is saved to: a PAM image is copied to steg_ + its name (see
+     * MappedCarrier.OutputPath), other images are written as steg_ + their name with the png extension (see
+     * StegImage.OutputPath).
+     * @param path path to the original image
+     * @return path to the image with the hidden file
+     */
+    static String OutputPath(String path){
+        return MappedCarrier.IsPam(path) ? MappedCarrier.OutputPath(path) : StegImage.OutputPath(path);
+    }
+
+    /**
+     * Get the number of pixels of the whole image.
+     * @return number of pixels
+     */
+    long GetPixelCount();
+
+    int GetWidth();
+
+    int GetHeight();
+
+    /**
+     * Hide `length` bytes of `src` starting at `offset` at position `streamOffset` of the data stream which starts
+     * at pixel `firstPixel`, see BitPacker.Pack.
+     * @param parallel whether to encode the bytes concurrently on all cores
+     * @throws IllegalArgumentException if the bytes do not fit into the image
+     */
+    void Pack(byte[] src, int offset, int length, int firstPixel, int bitsPerByte, long streamOffset, boolean parallel);
+
+    /**
+     * Recover `length` bytes from position `streamOffset` of the data stream which starts at pixel `firstPixel`
+     * into `dst` starting at `offset`, see BitPacker.Unpack.
+     * @param parallel whether to decode the bytes concurrently on all cores
+     * @throws IllegalArgumentException if the bytes lie outside of the image
+     */
+    void Unpack(int firstPixel, int bitsPerByte, long streamOffset, byte[] dst, int offset, int length,
+                boolean parallel);
+}
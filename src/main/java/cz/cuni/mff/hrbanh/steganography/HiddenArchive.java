@@ -0,0 +1,391 @@
+package cz.cuni.mff.hrbanh.steganography;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
+
+/**
+ * Archive of several files hidden in one image. It is stored as the data of a HiddenFile with FLAG_ARCHIVE set,
+ * so it starts with the same magic number and metadata. The data of the archive is organized as follows:
+ *      bytes 0-3 - number of entries n
+ *      index of n entries, each of them:
+ *          1 byte - length of entry name in bytes (x)
+ *          x bytes - entry name
+ *          4 bytes - offset of the entry data from the start of the archive data
+ *          4 bytes - length of the entry data in bytes
+ *      data of all entries in the order of the index
+ * All numbers are little-endian. Entries are never compressed, so that the data of a single entry can be decoded
+ * straight from its pixels without decoding the entries in front of it.
+ */
+public final class HiddenArchive {
+    /**
+     * File name stored in the metadata of an archive.
+     */
+    public static final String ARCHIVE_NAME = "archive";
+
+    /**
+     * Entry of the index of an archive hidden in an image.
+     */
+    public static final class Entry {
+        public final String name;
+        /**
+         * Position of the first byte of the entry data in the stream which starts at pixel HiddenFile.HEADER_PIXELS.
+         */
+        public final long offset;
+        public final long length;
+
+        Entry(String name, long offset, long length){
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public String toString(){
+            return name + ", " + length + " B";
+        }
+    }
+
+    private final List<String> filePaths = new ArrayList<>();
+    private final List<byte[]> names = new ArrayList<>();
+    private final List<Long> lengths = new ArrayList<>();
+    private final int bitsPerByte;
+
+    /**
+     * Create an empty archive.
+     * @param bitsPerByte number of bits per byte used for hiding the archive (1-8), or HidePlan.AUTO to use the lowest
+     *                    one the archive fits with
+     */
+    public HiddenArchive(int bitsPerByte){
+        if (bitsPerByte != HidePlan.AUTO && (bitsPerByte < 1 || bitsPerByte > 8)){
+            throw new IllegalArgumentException("bitsPerByte must be between 1 and 8");
+        }
+        this.bitsPerByte = bitsPerByte;
+    }
+
+    /**
+     * Add a file to the archive. Its data is read only when the archive is hidden.
+     * @param filePath path to the file, its name without directories is the name of the entry
+     * @throws FileNotFoundException if the file does not exist.
+     * @throws IllegalArgumentException if the name is too long or the archive already contains a file of that name,
+     * whose output would be overwritten when the archive is extracted.
+     */
+    public void Add(String filePath) throws FileNotFoundException{
+        File file = new File(filePath);
+        if (!file.isFile()){
+            throw new FileNotFoundException(filePath);
+        }
+        byte[] name = file.getName().getBytes();
+        if (name.length > 255){
+            throw new IllegalArgumentException("Filename too long. Must be less than 255 characters.");
+        }
+        for (byte[] added : names){
+            if (Arrays.equals(added, name)){
+                throw new IllegalArgumentException("Archive already contains a file named " + file.getName());
+            }
+        }
+        filePaths.add(filePath);
+        names.add(name);
+        lengths.add(file.length());
+    }
+
+    /**
+     * Hide all added files in an image. The files are read one after another while they are hidden,
+     * so only one block of data is kept in memory.
+     * @param img image the archive is hidden in
+     * @param parallel whether to encode the data concurrently on all cores
+     * @throws IOException if a file cannot be read or the archive does not fit into the image.
+     */
+    public void HideInImage(Carrier img, boolean parallel) throws IOException{
+        byte[] index = CreateIndex();
+        long length = GetDataLength();
+        int bitsPerByte = this.bitsPerByte;
+        if (bitsPerByte == HidePlan.AUTO){
+            bitsPerByte = HidePlan.Create(img.GetWidth(), img.GetHeight(), ARCHIVE_NAME, length).bitsPerByte;
+        }
+        try (InputStream data = new SequenceInputStream(OpenStreams(index))){
+            HiddenFile hf = new HiddenFile(ARCHIVE_NAME, data, length, bitsPerByte, HiddenFile.UNCOMPRESSED,
+                    HiddenFile.FLAG_ARCHIVE);
+            hf.HideInImage(img, parallel);
+        } catch (UncheckedIOException e){
+            throw e.getCause();                     // a file could not be opened by OpenStreams
+        }
+    }
+
+    /**
+     * Get the number of bits per byte given to the constructor.
+     * @return bitsPerByte, or HidePlan.AUTO
+     */
+    public int GetBitsPerByte(){
+        return bitsPerByte;
+    }
+
+    /**
+     * Plan hiding the archive in an image, reading only the size of the image.
+     * @param imgPath path to the image
+     * @return plan with the lowest bitsPerByte the archive fits with
+     * @throws IOException if the image cannot be read or the archive does not fit into it.
+     */
+    public HidePlan Plan(String imgPath) throws IOException{
+        return HidePlan.Create(imgPath, ARCHIVE_NAME, GetDataLength());
+    }
+
+    /**
+     * Get the length of the archive data.
+     * @return length of the index and all added files in bytes
+     */
+    public long GetDataLength(){
+        long length = IndexLength();
+        for (long fileLength : lengths){
+            length += fileLength;
+        }
+        return length;
+    }
+
+    private int IndexLength(){
+        int indexLength = 4;
+        for (byte[] name : names){
+            indexLength += 9 + name.length;
+        }
+        return indexLength;
+    }
+
+    /**
+     * Create the number of entries and the index, see the class docstring.
+     */
+    private byte[] CreateIndex(){
+        int indexLength = IndexLength();
+        byte[] index = new byte[indexLength];
+        WriteInt(index, 0, names.size());
+        long offset = indexLength;
+        int position = 4;
+        for (int i = 0; i < names.size(); i++){
+            byte[] name = names.get(i);
+            index[position] = (byte)name.length;
+            System.arraycopy(name, 0, index, position + 1, name.length);
+            position += 1 + name.length;
+            WriteInt(index, position, offset);
+            WriteInt(index, position + 4, lengths.get(i));
+            position += 8;
+            offset += lengths.get(i);
+        }
+        return index;
+    }
+
+    /**
+     * Get streams with the index followed by the data of all added files, each file is opened when the previous
+     * one is read.
+     */
+    private Enumeration<InputStream> OpenStreams(byte[] index){
+        return new Enumeration<>() {
+            private int next = -1;
+
+            @Override
+            public boolean hasMoreElements(){
+                return next < filePaths.size();
+            }
+
+            @Override
+            public InputStream nextElement(){
+                if (next < 0){
+                    next++;
+                    return new ByteArrayInputStream(index);
+                }
+                String filePath = filePaths.get(next++);
+                try {
+                    return Files.newInputStream(Path.of(filePath));
+                } catch (IOException e){
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Read the index of an archive hidden in an image. Only the pixels holding the metadata and the index are read.
+     * @param img image containing the archive
+     * @return entries in the order they are stored
+     * @throws IllegalArgumentException if the image does not contain an archive or the index is corrupted.
+     */
+    public static List<Entry> ReadIndex(Carrier img) throws IllegalArgumentException{
+        HiddenFileHeader header = HiddenFileHeader.Read(img);
+        if (!header.archive){
+            throw new IllegalArgumentException("Image contains file " + header.fileName + ", not an archive");
+        }
+        return ReadIndex(img, header);
+    }
+
+    /**
+     * Read the index of an archive whose header was already read.
+     * @param img image containing the archive
+     * @param header header of the archive, as returned by HiddenFileHeader.Read
+     * @return entries in the order they are stored
+     * @throws IllegalArgumentException if the index is corrupted.
+     */
+    public static List<Entry> ReadIndex(Carrier img, HiddenFileHeader header) throws IllegalArgumentException{
+        byte[] buffer = new byte[255];
+        long position = 0;
+        ReadBytes(img, header, position, buffer, 4);
+        long count = ReadInt(buffer, 0);
+        position += 4;
+        List<Entry> entries = new ArrayList<>();
+        for (long i = 0; i < count; i++){
+            ReadBytes(img, header, position, buffer, 1);
+            int nameLength = buffer[0] & 0xFF;
+            ReadBytes(img, header, position + 1, buffer, nameLength);
+            String name = new String(buffer, 0, nameLength);
+            position += 1 + nameLength;
+            ReadBytes(img, header, position, buffer, 8);
+            long offset = ReadInt(buffer, 0);
+            long length = ReadInt(buffer, 4);
+            position += 8;
+            if (offset + length > header.dataLength){
+                throw new IllegalArgumentException("Archive index is corrupted");
+            }
+            entries.add(new Entry(name, header.dataOffset + offset, length));
+        }
+        return entries;
+    }
+
+    /**
+     * Find an entry of an archive by its name.
+     * @param entries index of the archive, as returned by ReadIndex
+     * @param name name of the entry
+     * @return the first entry with the given name
+     * @throws IllegalArgumentException if there is no such entry.
+     */
+    public static Entry Find(List<Entry> entries, String name) throws IllegalArgumentException{
+        for (Entry entry : entries){
+            if (entry.name.equals(name)){
+                return entry;
+            }
+        }
+        throw new IllegalArgumentException("Archive does not contain " + name);
+    }
+
+    /**
+     * Recover the data of a single entry and write it to `out`. Only the pixels holding the entry are decoded,
+     * so the time does not depend on the size of the other entries. The data is not verified, see ExtractToFile.
+     * @param img image containing the archive
+     * @param header header of the archive, as returned by HiddenFileHeader.Read
+     * @param entry entry returned by ReadIndex
+     * @param out stream the data is written to. The stream is not closed.
+     * @param parallel whether to decode the data concurrently on all cores
+     * @throws IOException if writing to `out` fails.
+     */
+    public static void Extract(Carrier img, HiddenFileHeader header, Entry entry, OutputStream out,
+                               boolean parallel) throws IOException{
+        HiddenFile.DecodeRange(img, header.bitsPerByte, entry.offset, entry.length, out, parallel);
+    }
+
+    /**
+     * Recover a single entry of an archive and save it as "extracted_" + entry name.
+     * The checksum in the header covers the whole archive data, so the entry is not verified: checking it would mean
+     * decoding every other entry too. Use HiddenFile.Verify to check the whole archive.
+     * @param img image containing the archive
+     * @param name name of the entry
+     * @param parallel whether to decode the data concurrently on all cores
+     * @return the extracted entry
+     * @throws IOException if the file cannot be written.
+     * @throws IllegalArgumentException if the image does not contain an archive with such entry.
+     */
+    public static Entry ExtractToFile(Carrier img, String name, boolean parallel)
+            throws IOException, IllegalArgumentException{
+        HiddenFileHeader header = HiddenFileHeader.Read(img);
+        if (!header.archive){
+            throw new IllegalArgumentException("Image contains file " + header.fileName + ", not an archive");
+        }
+        Entry entry = Find(ReadIndex(img, header), name);
+        try (FileOutputStream fos = new FileOutputStream(HiddenFile.OUTPUT_PREFIX + entry.name)){
+            Extract(img, header, entry, fos, parallel);
+        }
+        return entry;
+    }
+
+    /**
+     * Recover all entries of an archive and save each of them as `prefix` + entry name.
+     * If the archive has a checksum, it is computed from the entries while they are written, together with the index
+     * and any bytes between the entries, so the archive data is decoded only once. The extracted files are deleted
+     * if the checksum does not match.
+     * @param img image containing the archive
+     * @param header header of the archive, as returned by HiddenFileHeader.Read
+     * @param prefix prefix of the output paths, HiddenFile.OUTPUT_PREFIX on the command line
+     * @param parallel whether to decode the data concurrently on all cores
+     * @throws IOException if a file cannot be written.
+     * @throws IllegalArgumentException if the index is corrupted or the checksum does not match.
+     */
+    public static void ExtractAll(Carrier img, HiddenFileHeader header, String prefix, boolean parallel)
+            throws IOException, IllegalArgumentException{
+        Checksum checksum = new CRC32C();
+        OutputStream skipped = new CheckedOutputStream(OutputStream.nullOutputStream(), checksum);
+        long position = header.dataOffset;              // end of the data included in the checksum so far
+        // false once entries overlap or are not sorted by offset, the whole data is then decoded once more
+        boolean streamed = header.hasChecksum;
+        List<String> extracted = new ArrayList<>();
+        try {
+            for (Entry entry : ReadIndex(img, header)){
+                streamed = streamed && entry.offset >= position;
+                if (streamed){
+                    HiddenFile.DecodeRange(img, header.bitsPerByte, position, entry.offset - position, skipped,
+                            parallel);
+                    position = entry.offset + entry.length;
+                }
+                extracted.add(prefix + entry.name);
+                try (FileOutputStream fos = new FileOutputStream(prefix + entry.name)){
+                    Extract(img, header, entry, streamed ? new CheckedOutputStream(fos, checksum) : fos, parallel);
+                }
+            }
+            if (streamed){
+                long end = header.dataOffset + header.dataLength;
+                HiddenFile.DecodeRange(img, header.bitsPerByte, position, end - position, skipped, parallel);
+                HiddenFile.CheckChecksum(header, checksum);
+            } else if (header.hasChecksum){
+                HiddenFile.Verify(img, parallel);
+            }
+        } catch (IllegalArgumentException e){
+            for (String path : extracted){
+                Files.deleteIfExists(Path.of(path));
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Decode `length` bytes of the archive data starting at `position` into the beginning of `buffer`.
+     */
+    private static void ReadBytes(Carrier img, HiddenFileHeader header, long position, byte[] buffer, int length){
+        if (position + length > header.dataLength){
+            throw new IllegalArgumentException("Archive index is corrupted");
+        }
+        long streamOffset = header.dataOffset + position;
+        img.Unpack(HiddenFile.HEADER_PIXELS, header.bitsPerByte, streamOffset, buffer, 0, length, false);
+    }
+
+    private static void WriteInt(byte[] buffer, int position, long value){
+        for (int i = 0; i < 4; i++){
+            buffer[position + i] = (byte)(value >> 8*i);
+        }
+    }
+
+    private static long ReadInt(byte[] buffer, int position){
+        return (buffer[position] & 0xFF) |
+                ((buffer[position + 1] & 0xFF) << 8) |
+                ((buffer[position + 2] & 0xFF) << 16) |
+                ((long)(buffer[position + 3] & 0xFF) << 24);
+    }
+}
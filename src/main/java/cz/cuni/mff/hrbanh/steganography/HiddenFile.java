@@ -1,28 +1,116 @@
 package cz.cuni.mff.hrbanh.steganography;
 
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
 
 /**
- * Class for preprocessing a file to be hidden in an image. Content of file is read as an array of bytes and prepended with
- * specific metadata to store the file name, encoding parameters, etc.
+ * Class for preprocessing a file to be hidden in an image. Content of file is prepended with specific metadata to store
+ * the file name, encoding parameters, etc. Only the metadata is kept in memory, the content of the file is read
+ * from a stream in blocks while it is being hidden, so files larger than the heap can be hidden.
  * HiddenFile data structure:
  *      bytes 0-12 - magic number
- *      byte 13 - bitsPerByte - number of least-significant bits changed (1-8)
+ *      byte 13 - bits 0-3: bitsPerByte - number of least-significant bits changed (1-8)
+ *                bits 4-7: flags - FLAG_COMPRESSED if the file data is compressed,
+ *                                  FLAG_CHECKSUM if the metadata contains a checksum of the file data,
+ *                                  FLAG_ARCHIVE if the file data is an archive of several files (see HiddenArchive)
  *      byte 14 - length of filename in bytes (max 255 ASCII characters)
  *      bytes 15-x - filename
- *      bytes (x+1)-(x+5) - length of file data in bytes (files up to 2^32 B = 2^22 kB = 2^12 MB = 4 GB)
- *      bytes (x+6)-... - file data
+ *      bytes (x+1)-(x+4) - length of file data in bytes (files up to 2^32 B = 2^22 kB = 2^12 MB = 4 GB)
+ *      bytes (x+5)-(x+8) - CRC32C of the file data as it is stored (after compression), only if FLAG_CHECKSUM is set
+ *      bytes (x+9)-... - file data, compressed by Deflate if FLAG_COMPRESSED is set
  * Bytes 0-13 are be encoded using one bit per byte encoding (only change one least significant bit of a byte),
  * the rest will be hidden using bitsPerByte encoding, as specified in the metadata, so that we can decode it after
  * finding out bitsPerByte. bitsPerByte parameter can be specified by the user.
+ * Compression is optional and its level can also be specified by the user. Compressed data uses fewer pixels, so it
+ * fits into smaller images and is faster to hide and extract. The length of compressed data is not known until
+ * the whole file is compressed, so it is hidden after the file data.
+ * The checksum is computed while the data is hidden and filled in the same way. It is checked while the data is
+ * extracted, so a carrier which was recompressed or truncated is reported instead of yielding a corrupted file.
+ * Files hidden without FLAG_CHECKSUM can still be extracted, but they cannot be verified.
  */
 public final class HiddenFile {
-    private final byte[] data;
+    /**
+     * Metadata of the hidden file (bytes 0 to x+8 of the structure above).
+     */
+    private final byte[] header;
+    /**
+     * Length of the file data in bytes.
+     */
+    private final long dataLength;
+    /**
+     * Path to the hidden file, or null if the data is read from `input`.
+     */
+    private final String filePath;
+    /**
+     * Stream with the file data if the HiddenFile was not created from a path. It can only be hidden once.
+     */
+    private InputStream input;
     private final int bitsPerByte;
+    /**
+     * Deflate compression level (0-9) of the file data, or UNCOMPRESSED.
+     */
+    private final int compressionLevel;
+
+    /**
+     * Number of bytes at the start of `header` which are encoded using 1 bit per byte (magic number and bitsPerByte).
+     */
+    static final int HEADER_LENGTH = 14;
+    /**
+     * Number of pixels occupied by the first HEADER_LENGTH bytes. The rest of the data starts at this pixel.
+     */
+    static final int HEADER_PIXELS = HEADER_LENGTH * 8 / 4;
+    /**
+     * Number of bytes of the hidden file decoded at once when extracting it into a stream.
+     */
+    static final int BLOCK_SIZE = 1 << 16;
+    /**
+     * Number of bytes of the hidden file decoded at once when extracting it into a stream in parallel. Large enough
+     * to be split among all cores by BitPacker.UnpackParallel.
+     */
+    static final int PARALLEL_BLOCK_SIZE = 1 << 24;
+    /**
+     * Maximal length of a hidden file, limited by the 4 bytes used to store it.
+     */
+    public static final long MAX_DATA_LENGTH = 0xFFFFFFFFL;
+    /**
+     * Flag in byte 13 of the header set if the file data is compressed by Deflate.
+     */
+    static final int FLAG_COMPRESSED = 0x10;
+    /**
+     * Flag in byte 13 of the header set if CHECKSUM_LENGTH bytes with the CRC32C of the file data follow its length.
+     * It is set for every file hidden by this version.
+     */
+    static final int FLAG_CHECKSUM = 0x20;
+    /**
+     * Length of the checksum of the file data in bytes.
+     */
+    static final int CHECKSUM_LENGTH = 4;
+    /**
+     * Flag in byte 13 of the header set if the file data is an archive of several files (see HiddenArchive).
+     */
+    static final int FLAG_ARCHIVE = 0x40;
+    /**
+     * Compression level of a HiddenFile whose data is hidden as is.
+     */
+    public static final int UNCOMPRESSED = -1;
+    /**
+     * Prefix prepended to the name of a hidden file when it is extracted.
+     */
+    public static final String OUTPUT_PREFIX = "extracted_";
 
     /**
      * Magic number to determine whether an image contains a hidden file.
@@ -34,216 +122,480 @@ public final class HiddenFile {
     /**
      * Takes as argument a path to and image and hides the HiddenImage in the created instance of StegImage.
      * The magic number and the bitsPerByte of the hidden image are encoded using 1 bit per byte,
-     * and the rest of `data` is encoded using `bitsPerByte`. This is useful when decoding an image to easily
+     * and the rest of the metadata and the file data is encoded using `bitsPerByte`. This is useful when decoding an image to easily
      * determine whether it contains a hidden file and get its `bitsPerByte` parameter.
      * The data is encoded as masking a certain number of least-significant bits of each byte of a pixel.
      * The pixels are in ARGB color space, therefore each pixel contains 4 bytes (A,R,G,B).
+     * The bits are moved into the pixels by BitPacker a whole pixel at a time.
      * Returns an instance of `StegImage` with an encoded hidden file.
      * @param imgPath path to the image
      * @return StegImage
      * @throws IOException if the `imgPath` is unreadable.
      */
     public StegImage HideInImage(String imgPath) throws IOException{
-        StegImage img = new StegImage(imgPath);
-        int imgCapacity = img.GetCapacity()[bitsPerByte - 1];
-        if (imgCapacity < data.length - 259){
-            System.out.println("Error: Image capacity is smaller than the hidden file size. " +
-                    "Use bigger image or smaller file.");
-            throw new IOException("Image capacity is smaller than the hidden file size.");
-        }
-        int[] pixels = img.pixels;
-        int data_ix = 0;
-        byte buffer = data[data_ix];
-        int bufferMask = 0b1;
-        boolean bit;
-        int bitMask;
-
-        for (int i = 0; i < pixels.length; i++) {               // for each pixel
-            for (int j = 0; j < 4; j++){                        // for each byte in pixel - B, G, R, A
-                for (int k = 0; k < bitsPerByte; k++){          // for `bitsPerByte` least significant bits in byte
-                    bit = (buffer & bufferMask) != 0;           // get current bit from buffer
-                    bitMask = 1 << (k + 8*j);                   // shift bitMask to correct position
-                    if (bit){
-                        pixels[i] |= bitMask;
-                    } else {
-                        pixels[i] &= ~bitMask;
-                    }
-                    bufferMask <<= 1;
-                    if (bufferMask >= 0x100){
-                        bufferMask = 0b1;
-                        data_ix++;
-                        if (data_ix >= data.length){
-                            return img;
-                        }
-                        buffer = data[data_ix];
-                    }
-                    if (data_ix <= 13 || (data_ix == 14 && bufferMask == 1) ){      // if we are encoding magic number and bitsPerByte
-                        break;
-                    }
+        return HideInImage(imgPath, false);
+    }
+
+    /**
+     * Same as HideInImage(imgPath), but if `parallel` is true, the data is split into ranges of pixels which are
+     * encoded concurrently on all cores (see BitPacker.PackParallel). The resulting image is identical.
+     * @param imgPath path to the image
+     * @param parallel whether to encode the data in parallel
+     * @return StegImage
+     * @throws IOException if the `imgPath` is unreadable.
+     */
+    public StegImage HideInImage(String imgPath, boolean parallel) throws IOException{
+        StegImage img = new StegImage(imgPath, true);
+        HideInImage(img, parallel);
+        return img;
+    }
+
+    /**
+     * Hide the file in an already loaded image. The file data is read in blocks of BLOCK_SIZE bytes
+     * (PARALLEL_BLOCK_SIZE bytes in parallel mode), each of which is encoded before the next one is read.
+     * @param img image the file is hidden in, its pixels are modified
+     * @param parallel whether to encode each block concurrently on all cores
+     * @throws IOException if the file data cannot be read or the image capacity is too small.
+     */
+    public void HideInImage(Carrier img, boolean parallel) throws IOException{
+        try (Metrics.Timer timer = Metrics.GLOBAL.Start(Metrics.Phase.PACK)){
+            long stored = Hide(img, timer, parallel);
+            long streamLength = header.length - HEADER_LENGTH + stored;
+            timer.Count(header.length + stored, HEADER_PIXELS + BitPacker.PixelsFor(streamLength, bitsPerByte));
+        }
+    }
+
+    /**
+     * Hide the file in an image, see HideInImage.
+     * @param timer timer of the PACK phase, paused while the file data is read
+     * @return number of data bytes stored after the metadata
+     */
+    private long Hide(Carrier img, Metrics.Timer timer, boolean parallel) throws IOException{
+        long metadataLength = header.length - HEADER_LENGTH;       // metadata stored using bitsPerByte
+        // length of compressed data is not known in advance, it is checked while the data is hidden
+        long streamLength = metadataLength + (compressionLevel == UNCOMPRESSED ? dataLength : 0);
+        if (HEADER_PIXELS + BitPacker.PixelsFor(streamLength, bitsPerByte) > img.GetPixelCount()){
+            throw CapacityError();
+        }
+        img.Pack(header, 0, HEADER_LENGTH, 0, 1, 0, false);
+        img.Pack(header, HEADER_LENGTH, header.length - HEADER_LENGTH, HEADER_PIXELS, bitsPerByte, 0, false);
+
+        InputStream in = OpenData();
+        Deflater deflater = null;
+        Checksum checksum = new CRC32C();
+        try {
+            long storedLength;
+            if (compressionLevel == UNCOMPRESSED){
+                storedLength = PackData(img, in, dataLength, checksum, timer, parallel);
+            } else {
+                deflater = new Deflater(compressionLevel);
+                storedLength = PackData(img, new DeflaterInputStream(in, deflater, BLOCK_SIZE), -1, checksum,
+                        timer, parallel);
+                if (storedLength > MAX_DATA_LENGTH){
+                    throw new IOException("Compressed file too large. Files up to " + MAX_DATA_LENGTH +
+                            " bytes can be hidden.");
                 }
             }
+            // replace the placeholder length (if the data was compressed) and checksum in the metadata
+            byte[] trailer = new byte[4 + CHECKSUM_LENGTH];
+            for (int i = 0; i < 4; i++){
+                trailer[i] = (byte)(storedLength >> 8*i);
+                trailer[4 + i] = (byte)(checksum.getValue() >> 8*i);
+            }
+            int start = compressionLevel == UNCOMPRESSED ? 4 : 0;
+            img.Pack(trailer, start, trailer.length - start, HEADER_PIXELS, bitsPerByte,
+                    metadataLength - trailer.length + start, false);
+            return storedLength;
+        } finally {
+            if (deflater != null){
+                deflater.end();
+            }
+            if (filePath != null){
+                in.close();
+            }
         }
-        if (data_ix < data.length-1){
-            throw new IOException("Image capacity is smaller than the hidden file size.");
+    }
+
+    /**
+     * Read the file data from `in` in blocks of BLOCK_SIZE bytes (PARALLEL_BLOCK_SIZE bytes in parallel mode) and
+     * hide each block right after the metadata before the next one is read.
+     * @param img image the data is hidden in
+     * @param in stream with the data
+     * @param length number of bytes to read, or -1 to read until the end of the stream
+     * @param checksum checksum updated with every hidden byte
+     * @param timer timer of the PACK phase, paused while a block is read and checksummed
+     * @param parallel whether to encode each block concurrently on all cores
+     * @return number of bytes hidden
+     * @throws IOException if the data cannot be read or does not fit into the image.
+     */
+    private long PackData(Carrier img, InputStream in, long length, Checksum checksum, Metrics.Timer timer,
+                          boolean parallel) throws IOException{
+        long streamOffset = header.length - HEADER_LENGTH;
+        byte[] block = new byte[(int)Math.min(parallel ? PARALLEL_BLOCK_SIZE : BLOCK_SIZE, dataLength + BLOCK_SIZE)];
+        long done = 0;
+        while (length < 0 || done < length){
+            int toRead = length < 0 ? block.length : (int)Math.min(block.length, length - done);
+            timer.Pause();
+            int read = in.readNBytes(block, 0, toRead);
+            checksum.update(block, 0, read);
+            timer.Resume();
+            if (length >= 0 && read < toRead){
+                throw new EOFException("Hidden file is shorter than " + length + " bytes.");
+            }
+            if (read == 0){
+                break;
+            }
+            long end = HEADER_PIXELS + BitPacker.PixelsFor(streamOffset + done + read, bitsPerByte);
+            if (end > img.GetPixelCount()){
+                throw CapacityError();
+            }
+            img.Pack(block, 0, read, HEADER_PIXELS, bitsPerByte, streamOffset + done, parallel);
+            done += read;
         }
-        else {
-            return img;
+        return done;
+    }
+
+    /**
+     * Compute the length of data compressed the same way as it is compressed when hidden, without storing it.
+     * Used to plan hiding a compressed file before it is hidden, which compresses the data once more.
+     * @param in stream with the data, read until its end but not closed
+     * @param compressionLevel Deflate compression level (0-9)
+     * @return length of the compressed data in bytes
+     * @throws IOException if the data cannot be read.
+     */
+    public static long CompressedLength(InputStream in, int compressionLevel) throws IOException{
+        Deflater deflater = new Deflater(CheckCompressionLevel(compressionLevel));
+        try {
+            return new DeflaterInputStream(in, deflater, BLOCK_SIZE).transferTo(OutputStream.nullOutputStream());
+        } finally {
+            deflater.end();
         }
     }
 
     /**
-     * Write an array of bytes to file with name `path`.
-     * Used when decoding an image.
-     * @param path name of the file to be written.
-     * @param data
-     * @throws IOException
+     * Report that the file does not fit into the image.
+     * @return exception to be thrown
      */
-    private static void WriteToFile(String path, byte[] data) throws IOException{
-        File file = new File(path);
-        file.createNewFile();
-        java.io.FileOutputStream fos = new java.io.FileOutputStream(file);
-        fos.write(data);
-        fos.close();
+    private static IOException CapacityError(){
+        System.out.println("Error: Image capacity is smaller than the hidden file size. " +
+                "Use bigger image or smaller file.");
+        return new IOException("Image capacity is smaller than the hidden file size.");
+    }
+
+    /**
+     * Get the length of the file data.
+     * @return length of the hidden file in bytes, without metadata
+     */
+    public long GetDataLength(){
+        return dataLength;
+    }
+
+    /**
+     * Get a stream with the file data. A new stream is opened for a HiddenFile created from a path, otherwise the
+     * stream given to the constructor is returned.
+     * @return stream with the file data
+     * @throws IOException if the file cannot be opened or the stream was already consumed.
+     */
+    private InputStream OpenData() throws IOException{
+        if (filePath != null){
+            return Files.newInputStream(Path.of(filePath));
+        }
+        if (input == null){
+            throw new IOException("Data of the hidden file was already consumed.");
+        }
+        InputStream in = input;
+        input = null;
+        return in;
     }
 
     /**
      * Try to recover a hidden file from an image.
      * If the image contained a hidden file, it is processed and saved as "extracted_" + original file name.
      * This is the inverse operation to HideInImage.
-     * We process the first several pixels that are encoded using 1 bpB and verify magic number and get bit per byte
-     * parameter of the hidden file. Then we process the rest of the image using that parameter and store the recovered
-     * data in a list. After processing all metadata and reading all data we call WriteToFile to save the hidden file.
+     * The header is parsed first (see HiddenFileHeader) and the data is then decoded straight into the output file
+     * in blocks of BLOCK_SIZE bytes, so no copy of the whole hidden file is kept in memory.
      * @param imgPath path to image we try to recover hidden information from.
      * @throws IOException if the image is unable to read.
      * @throws IllegalArgumentException if the file is corrupted or the image does not contain a hidden file.
      */
     public static void ExtractFromImage(String imgPath) throws IOException, IllegalArgumentException{
-        StegImage img = new StegImage(imgPath);
-        int[] pixels = img.pixels;
-        List<Byte> dataArr = new ArrayList<>();
-        byte buffer = 0;
-        int bufferMask = 1;
-        boolean bit;
-
-        int filenameLength = 0;     // in bytes
-        int dataLength = 0;         // in bytes
-        int bitsPerByte = 1;        // start with value set to 1, update it after reading the metadata
-        String fileName = "";
-
-        for (int i = 0; i < pixels.length; i++){                // cycle through pixels of image
-            for (int j = 0; j < 4; j++){                        // bytes in a pixel (A, R, G, B)
-                for (int k = 0; k < bitsPerByte; k++){          // least-significant bits of a given byte
-                    bit = (pixels[i] & (1 << (j*8 + k)) )!= 0;
-                    if (bit){
-                        buffer |= bufferMask;
-                    }
-                    bufferMask <<= 1;
-                    if (bufferMask >= 0x100){
-                        bufferMask = 1;
-                        dataArr.add(buffer);
-                        buffer = 0;
-                    }
-                    if (dataArr.size() == 13 && bufferMask == 1){     // after reading first 13 bytes, verify magic number
-                        for (int l = 0; l < magicNumber.length; l++){
-                            if (dataArr.get(l) != magicNumber[l]){
-                                throw new IllegalArgumentException("Magic number does not match");
-                            }
-                        }
-                    }
-                    if (dataArr.size() == 14 && bufferMask == 1){
-                        bitsPerByte = dataArr.get(13);              // now we can process pixels using `bitsPerByte`
-                        if (bitsPerByte < 1 || bitsPerByte > 8){
-                            throw new IllegalArgumentException("bitsPerByte parameter must be between 1 and 8");
-                        }
-                        break;
-                    }
-                    if (dataArr.size() == 15 && bufferMask == 1){
-                        filenameLength = dataArr.get(14);
-                    }
-                    if (dataArr.size() == 15 + filenameLength && bufferMask == 1){
-                        byte[] fileNameBytes = new byte[filenameLength];
-                        for (int l = 0; l < filenameLength; l++){
-                            fileNameBytes[l] = dataArr.get(15 + l);
-                        }
-                        fileName = "extracted_" + new String(fileNameBytes);
-                    }
-                    if (dataArr.size() == 15 + filenameLength + 4 && bufferMask == 1){
-                        dataLength = (int)(dataArr.get(15 + filenameLength) & 0xFF) |
-                                ((int)(dataArr.get(15 + filenameLength + 1) & 0xFF) << 8) |
-                                ((int)(dataArr.get(15 + filenameLength + 2) & 0xFF) << 16) |
-                                ((int)(dataArr.get(15 + filenameLength + 3) & 0xFF) << 24);
-                    }
-                    if (dataArr.size() == 15 + filenameLength + 4 + dataLength && bufferMask == 1){
-                        byte[] dataBytes = new byte[dataLength];
-                        for (int l = 0; l < dataLength; l++){
-                            dataBytes[l] = dataArr.get(15 + filenameLength + 4 + l);
-                        }
-                        WriteToFile(fileName, dataBytes);
-                        return;
-                    }
-                }
+        ExtractFromImage(imgPath, false);
+    }
+
+    /**
+     * Same as ExtractFromImage(imgPath), but if `parallel` is true, the data is decoded concurrently on all cores
+     * in blocks of PARALLEL_BLOCK_SIZE bytes.
+     * @param imgPath path to image we try to recover hidden information from.
+     * @param parallel whether to decode the data in parallel
+     * @return header of the extracted file
+     * @throws IOException if the image is unable to read.
+     * @throws IllegalArgumentException if the file is corrupted or the image does not contain a hidden file.
+     */
+    public static HiddenFileHeader ExtractFromImage(String imgPath, boolean parallel)
+            throws IOException, IllegalArgumentException{
+        return ExtractToFile(new StegImage(imgPath, true), parallel);
+    }
+
+    /**
+     * Recover a hidden file from an already loaded image and save it as "extracted_" + original file name.
+     * Every entry of an archive (see HiddenArchive) is saved as "extracted_" + entry name.
+     * @param img image containing the hidden file
+     * @param parallel whether to decode the data in parallel
+     * @return header of the extracted file
+     * @throws IOException if the file cannot be written.
+     * @throws IllegalArgumentException if the file is corrupted or the image does not contain a hidden file.
+     */
+    public static HiddenFileHeader ExtractToFile(Carrier img, boolean parallel)
+            throws IOException, IllegalArgumentException{
+        return ExtractToFile(img, OUTPUT_PREFIX, parallel);
+    }
+
+    /**
+     * Same as ExtractToFile(img, parallel), but the file (or every entry of an archive) is saved as `prefix` +
+     * its name.
+     * @param img image containing the hidden file
+     * @param prefix prefix of the output path, may contain directories
+     * @param parallel whether to decode the data in parallel
+     * @return header of the extracted file
+     * @throws IOException if the file cannot be written.
+     * @throws IllegalArgumentException if the file is corrupted or the image does not contain a hidden file.
+     */
+    public static HiddenFileHeader ExtractToFile(Carrier img, String prefix, boolean parallel)
+            throws IOException, IllegalArgumentException{
+        HiddenFileHeader header = HiddenFileHeader.Read(img);
+        if (header.archive){
+            HiddenArchive.ExtractAll(img, header, prefix, parallel);
+            return header;
+        }
+        String outputPath = prefix + header.fileName;
+        try (FileOutputStream fos = new FileOutputStream(outputPath)){
+            ExtractFromImage(img, header, fos, parallel);
+        } catch (IOException | IllegalArgumentException e){
+            Files.deleteIfExists(Path.of(outputPath));          // do not leave a corrupted file behind
+            throw e;
+        }
+        return header;
+    }
+
+    /**
+     * Recover the data of a hidden file described by `header` from `img` and write it to `out`.
+     * At most BLOCK_SIZE bytes (PARALLEL_BLOCK_SIZE bytes in parallel mode) are decoded at a time. Compressed data
+     * is decompressed while it is written.
+     * @param img image containing the hidden file
+     * @param header header of the hidden file, as returned by HiddenFileHeader.Read
+     * @param out stream the data is written to. The stream is not closed.
+     * @param parallel whether to decode each block concurrently, using blocks of PARALLEL_BLOCK_SIZE bytes
+     * @throws IOException if writing to `out` fails or compressed data is corrupted.
+     * @throws IllegalArgumentException if the checksum of the data does not match. All data has been written
+     * to `out` by then.
+     */
+    public static void ExtractFromImage(Carrier img, HiddenFileHeader header, OutputStream out, boolean parallel)
+            throws IOException, IllegalArgumentException{
+        Inflater inflater = header.compressed ? new Inflater() : null;
+        try {
+            OutputStream target = header.compressed ? new InflaterOutputStream(out, inflater) : out;
+            CheckedOutputStream checked = new CheckedOutputStream(target, new CRC32C());
+            DecodeRange(img, header.bitsPerByte, header.dataOffset, header.dataLength, checked, parallel);
+            if (header.compressed){
+                ((InflaterOutputStream)target).finish();
+            }
+            CheckChecksum(header, checked.getChecksum());
+        } finally {
+            if (inflater != null){
+                inflater.end();
             }
         }
     }
 
     /**
-     * Get contents of a file as a byte array.
-     * @param filePath
-     * @return byte[] data
-     * @throws IOException
+     * Decode `length` stored bytes starting at `offset` of the stream which starts at pixel HEADER_PIXELS block by
+     * block and write them to `out`. Only the pixels holding these bytes are read (and converted, if the image was
+     * loaded in lazy mode).
      */
-    private byte[] ReadFileBin(String filePath) throws IOException {
-        File file = new File(filePath);
-        FileInputStream fis = new FileInputStream(file);
-        byte[] data = new byte[(int) file.length()];
-        fis.read(data);
-        fis.close();
-        return data;
+    static void DecodeRange(Carrier img, int bitsPerByte, long offset, long length, OutputStream out,
+                            boolean parallel) throws IOException{
+        try (Metrics.Timer timer = Metrics.GLOBAL.Start(Metrics.Phase.UNPACK)){
+            byte[] block = new byte[(int)Math.min(parallel ? PARALLEL_BLOCK_SIZE : BLOCK_SIZE, length)];
+            for (long done = 0; done < length; done += block.length){
+                int blockLength = (int)Math.min(block.length, length - done);
+                long streamOffset = offset + done;
+                img.Unpack(HEADER_PIXELS, bitsPerByte, streamOffset, block, 0, blockLength, parallel);
+                timer.Pause();              // decompressing and writing the data is not part of the phase
+                out.write(block, 0, blockLength);
+                timer.Resume();
+            }
+            timer.Count(length, UnpackedPixels(bitsPerByte, offset, length));
+        }
+    }
+
+    /**
+     * Check the integrity of a hidden file without writing its data anywhere. The data is decoded block by block
+     * as in ExtractFromImage and only its checksum is computed. Compressed files without a checksum are decompressed
+     * instead, which detects most corruptions. Uncompressed files without a checksum cannot be verified, only their
+     * header is checked.
+     * @param img image containing the hidden file
+     * @param parallel whether to decode each block concurrently on all cores
+     * @return header of the verified file, `hasChecksum` tells whether its data was verified by the checksum
+     * @throws IOException if compressed data is corrupted.
+     * @throws IllegalArgumentException if the image does not contain a hidden file or the checksum does not match.
+     */
+    public static HiddenFileHeader Verify(Carrier img, boolean parallel) throws IOException, IllegalArgumentException{
+        HiddenFileHeader header = HiddenFileHeader.Read(img);
+        if (header.hasChecksum){
+            CheckedOutputStream checked = new CheckedOutputStream(OutputStream.nullOutputStream(), new CRC32C());
+            DecodeRange(img, header.bitsPerByte, header.dataOffset, header.dataLength, checked, parallel);
+            CheckChecksum(header, checked.getChecksum());
+        } else if (header.compressed){
+            ExtractFromImage(img, header, OutputStream.nullOutputStream(), parallel);
+        }
+        return header;
+    }
+
+    /**
+     * Compare the checksum computed from the stored data of a hidden file with the one in its header.
+     * @throws IllegalArgumentException if the header contains a checksum which does not match.
+     */
+    static void CheckChecksum(HiddenFileHeader header, Checksum checksum) throws IllegalArgumentException{
+        if (header.hasChecksum && checksum.getValue() != header.checksum){
+            throw new IllegalArgumentException(String.format("Checksum %08x does not match %08x stored in the " +
+                    "header, the hidden file is corrupted", checksum.getValue(), header.checksum));
+        }
     }
 
     /**
-     * Create instance of a HiddenFile. The structure is defined in the HiddenFile class docstring.
-     * The data is saved as a byte[] data including all metadata and specifies what will be encoded to an image later on.
+     * Number of pixels holding `length` stored bytes starting at `offset` of the stream.
+     */
+    private static long UnpackedPixels(int bitsPerByte, long offset, long length){
+        return length == 0 ? 0 : BitPacker.PixelsFor(offset + length, bitsPerByte) -
+                2 * (offset / bitsPerByte);
+    }
+
+    /**
+     * Create instance of a HiddenFile from a file on disk. The structure is defined in the HiddenFile class docstring.
+     * Only the metadata is stored as byte[] header, the file is read when it is hidden in an image.
      * The class also stores its bitsPerByte parameter as an integer, which is also specified in metadata.
      * @param filePath
      * @param bitsPerByte
-     * @throws IOException
+     * @throws IOException if the file does not exist or is longer than MAX_DATA_LENGTH.
      */
     public HiddenFile(String filePath, int bitsPerByte) throws IOException{
-        String filename = filePath.substring(filePath.lastIndexOf('/')+1);
+        this(filePath, bitsPerByte, UNCOMPRESSED);
+    }
+
+    /**
+     * Create instance of a HiddenFile from a file on disk whose data will be compressed by Deflate.
+     * @param filePath
+     * @param bitsPerByte
+     * @param compressionLevel Deflate compression level (0-9), or UNCOMPRESSED
+     * @throws IOException if the file does not exist or is longer than MAX_DATA_LENGTH.
+     */
+    public HiddenFile(String filePath, int bitsPerByte, int compressionLevel) throws IOException{
+        File file = new File(filePath);
+        if (!file.isFile()){
+            throw new FileNotFoundException(filePath);
+        }
+        this.filePath = filePath;
+        this.dataLength = file.length();
         this.bitsPerByte = bitsPerByte;
+        this.compressionLevel = CheckCompressionLevel(compressionLevel);
+        this.header = CreateHeader(filePath.substring(filePath.lastIndexOf('/')+1), dataLength, bitsPerByte,
+                compressionLevel, 0);
+    }
+
+    /**
+     * Create instance of a HiddenFile whose data is read from a stream. The stream is read only once, when the file is
+     * hidden in an image, and is not closed.
+     * @param fileName name of the hidden file stored in the metadata
+     * @param input stream with the file data
+     * @param dataLength number of bytes which will be read from `input`
+     * @param bitsPerByte
+     * @throws IOException if `dataLength` is longer than MAX_DATA_LENGTH.
+     */
+    public HiddenFile(String fileName, InputStream input, long dataLength, int bitsPerByte) throws IOException{
+        this(fileName, input, dataLength, bitsPerByte, UNCOMPRESSED);
+    }
+
+    /**
+     * Create instance of a HiddenFile whose data is read from a stream and compressed by Deflate.
+     * @param fileName name of the hidden file stored in the metadata
+     * @param input stream with the file data
+     * @param dataLength number of bytes which will be read from `input`
+     * @param bitsPerByte
+     * @param compressionLevel Deflate compression level (0-9), or UNCOMPRESSED
+     * @throws IOException if `dataLength` is longer than MAX_DATA_LENGTH.
+     */
+    public HiddenFile(String fileName, InputStream input, long dataLength, int bitsPerByte, int compressionLevel)
+            throws IOException{
+        this(fileName, input, dataLength, bitsPerByte, compressionLevel, 0);
+    }
+
+    /**
+     * Create instance of a HiddenFile whose data is read from a stream, with additional flags in byte 13.
+     * @param flags flags other than FLAG_COMPRESSED, e.g. FLAG_ARCHIVE
+     */
+    HiddenFile(String fileName, InputStream input, long dataLength, int bitsPerByte, int compressionLevel, int flags)
+            throws IOException{
+        this.filePath = null;
+        this.input = input;
+        this.dataLength = dataLength;
+        this.bitsPerByte = bitsPerByte;
+        this.compressionLevel = CheckCompressionLevel(compressionLevel);
+        this.header = CreateHeader(fileName, dataLength, bitsPerByte, compressionLevel, flags);
+    }
+
+    private static int CheckCompressionLevel(int compressionLevel){
+        if (compressionLevel != UNCOMPRESSED && (compressionLevel < 0 || compressionLevel > 9)){
+            throw new IllegalArgumentException("Compression level must be between 0 and 9");
+        }
+        return compressionLevel;
+    }
+
+    /**
+     * Create the metadata stored in front of the file data.
+     * @param filename name of the hidden file
+     * @param dataLength length of the file data in bytes
+     * @param bitsPerByte
+     * @param compressionLevel compression level, sets FLAG_COMPRESSED unless it is UNCOMPRESSED
+     * @param flags other flags stored in byte 13
+     * @return bytes 0 to x+8 of the structure defined in the HiddenFile class docstring. The checksum and
+     * the length of compressed data are 0, they are filled in once the data is hidden.
+     * @throws IOException if the file is longer than MAX_DATA_LENGTH.
+     */
+    private static byte[] CreateHeader(String filename, long dataLength, int bitsPerByte, int compressionLevel,
+                                       int flags) throws IOException{
         byte[] fileNameBytes = filename.getBytes();
         int filenameLength = fileNameBytes.length;
-        byte[] data = ReadFileBin(filePath);
-        this.data = new byte[data.length + 19 + filenameLength];
+        byte[] header = new byte[19 + filenameLength + CHECKSUM_LENGTH];
 
         //writing magic number - bytes 0, .. , 12
-        System.arraycopy(magicNumber, 0, this.data, 0, magicNumber.length);
+        System.arraycopy(magicNumber, 0, header, 0, magicNumber.length);
 
         // bitsPerByte - byte 13
         if (bitsPerByte < 1 || bitsPerByte > 8){
             throw new IllegalArgumentException("bitsPerByte must be between 1 and 8");
         }
-        this.data[13] = (byte)bitsPerByte;
+        header[13] = (byte)(bitsPerByte | flags | FLAG_CHECKSUM |
+                (compressionLevel != UNCOMPRESSED ? FLAG_COMPRESSED : 0));
 
         //length of filename - byte 14
 
         if (filenameLength > 255){
             throw new IllegalArgumentException("Filename too long. Must be less than 255 characters.");
         }
-        this.data[14] = (byte)filenameLength;
+        header[14] = (byte)filenameLength;
 
         //filename - byte 15, .. , 16 + filename.length - one byte per character in filename
-        System.arraycopy(fileNameBytes, 0, this.data, 15, filenameLength);
+        System.arraycopy(fileNameBytes, 0, header, 15, filenameLength);
 
         // num_bytes_in_file - 4 bytes
-        int fileSize = data.length;         // in bytes
-        for (int i = 0; i < 4; i++){
-            byte part = (byte)(fileSize >> 8*i);
-            this.data[15+filenameLength+i] = part;
+        if (dataLength < 0 || dataLength > MAX_DATA_LENGTH){
+            throw new IOException("File too large. Files up to " + MAX_DATA_LENGTH + " bytes can be hidden.");
         }
-
-        // file data
-        System.arraycopy(data, 0, this.data, 19+filenameLength, data.length);
+        for (int i = 0; i < 4 && compressionLevel == UNCOMPRESSED; i++){
+            byte part = (byte)(dataLength >> 8*i);
+            header[15+filenameLength+i] = part;
+        }
+        // checksum - 4 bytes, filled in once the data is hidden
+        return header;
     }
 }
@@ -0,0 +1,145 @@
+package cz.cuni.mff.hrbanh.steganography;
+
+import java.io.IOException;
+
+/**
+ * Metadata of a file hidden in an image, as stored in front of the file data (see HiddenFile).
+ * The header is parsed before any file data is decoded, so that the data can be written straight into a buffer
+ * or stream of exactly `dataLength` bytes.
+ */
+public final class HiddenFileHeader {
+    /**
+     * Number of least-significant bits used in each byte of a pixel (1-8).
+     */
+    public final int bitsPerByte;
+    /**
+     * Name of the hidden file, without the "extracted_" prefix.
+     */
+    public final String fileName;
+    /**
+     * Length of the hidden file in bytes.
+     */
+    public final long dataLength;
+    /**
+     * Whether the file data is compressed by Deflate. `dataLength` is then the length of the compressed data.
+     */
+    public final boolean compressed;
+    /**
+     * Whether the file data is an archive of several files, see HiddenArchive.
+     */
+    public final boolean archive;
+    /**
+     * Whether the header contains a checksum of the file data. Files hidden by older versions do not have one.
+     */
+    public final boolean hasChecksum;
+    /**
+     * CRC32C of the file data as it is stored (after compression), valid only if `hasChecksum` is true.
+     */
+    public final long checksum;
+    /**
+     * Position of the first byte of file data in the stream which starts at pixel HiddenFile.HEADER_PIXELS.
+     */
+    public final long dataOffset;
+
+    /**
+     * Maximal number of bytes following the first HiddenFile.HEADER_LENGTH bytes which belong to the header
+     * (length of file name, file name of up to 255 bytes, file length and checksum).
+     */
+    static final int MAX_LENGTH = 1 + 255 + 4 + HiddenFile.CHECKSUM_LENGTH;
+    /**
+     * Number of pixels from the start of an image which always contain the whole header, whatever its bitsPerByte.
+     */
+    public static final int MAX_PIXELS = (int)(HiddenFile.HEADER_PIXELS + BitPacker.PixelsFor(MAX_LENGTH, 1));
+
+    private HiddenFileHeader(int bitsPerByte, int flags, String fileName, long dataLength, long checksum,
+                             long dataOffset){
+        this.bitsPerByte = bitsPerByte;
+        this.compressed = (flags & HiddenFile.FLAG_COMPRESSED) != 0;
+        this.archive = (flags & HiddenFile.FLAG_ARCHIVE) != 0;
+        this.hasChecksum = (flags & HiddenFile.FLAG_CHECKSUM) != 0;
+        this.checksum = checksum;
+        this.fileName = fileName;
+        this.dataLength = dataLength;
+        this.dataOffset = dataOffset;
+    }
+
+    /**
+     * Read only the header of a hidden file from an image, without decoding the file data. Decoding stops after
+     * the top rows of the image holding the first MAX_PIXELS pixels (see StegImage.LoadTop). PAM images are mapped
+     * by MappedCarrier instead.
+     * @param imgPath path to the image
+     * @return parsed header
+     * @throws IOException if the image cannot be read.
+     * @throws IllegalArgumentException if the image does not contain a hidden file or the header is corrupted.
+     */
+    public static HiddenFileHeader Probe(String imgPath) throws IOException, IllegalArgumentException{
+        if (MappedCarrier.IsPam(imgPath)){
+            try (MappedCarrier carrier = MappedCarrier.Open(imgPath, false)){
+                return Read(carrier);
+            }
+        }
+        return Read(StegImage.LoadTop(imgPath, MAX_PIXELS));
+    }
+
+    @Override
+    public String toString(){
+        return (archive ? "archive " : "file ") + fileName + ", " + dataLength + " B" + (compressed ? " compressed" : "") + ", " +
+                bitsPerByte + " bits per byte" + (hasChecksum ? String.format(", crc32c %08x", checksum) : "");
+    }
+
+    /**
+     * Parse the header of a hidden file from an image. Only the pixels holding the metadata are read (and converted,
+     * if the image was loaded in lazy mode).
+     * @param img image containing the hidden file
+     * @return parsed header
+     * @throws IllegalArgumentException if the image does not contain a hidden file or the header is corrupted.
+     */
+    public static HiddenFileHeader Read(Carrier img) throws IllegalArgumentException{
+        if (img.GetPixelCount() < HiddenFile.HEADER_PIXELS){
+            throw new IllegalArgumentException("Image is too small to contain a hidden file");
+        }
+        byte[] header = new byte[HiddenFile.HEADER_LENGTH];
+        img.Unpack(0, 1, 0, header, 0, HiddenFile.HEADER_LENGTH, false);
+        for (int i = 0; i < HiddenFile.magicNumber.length; i++){     // verify magic number
+            if (header[i] != HiddenFile.magicNumber[i]){
+                throw new IllegalArgumentException("Magic number does not match");
+            }
+        }
+        int bitsPerByte = header[13] & 0x0F;                        // now we can process pixels using `bitsPerByte`
+        if (bitsPerByte < 1 || bitsPerByte > 8){
+            throw new IllegalArgumentException("bitsPerByte parameter must be between 1 and 8");
+        }
+        int flags = header[13] & 0xF0;
+        if ((flags & ~(HiddenFile.FLAG_COMPRESSED | HiddenFile.FLAG_CHECKSUM | HiddenFile.FLAG_ARCHIVE)) != 0){
+            throw new IllegalArgumentException("Unsupported flags " + Integer.toHexString(flags));
+        }
+
+        // offsets below are relative to the first byte after the header, which is stored at pixel HEADER_PIXELS
+        byte[] buffer = new byte[4];
+        img.Unpack(HiddenFile.HEADER_PIXELS, bitsPerByte, 0, buffer, 0, 1, false);
+        int filenameLength = buffer[0] & 0xFF;                      // in bytes
+        byte[] fileNameBytes = new byte[filenameLength];
+        img.Unpack(HiddenFile.HEADER_PIXELS, bitsPerByte, 1, fileNameBytes, 0, filenameLength, false);
+        img.Unpack(HiddenFile.HEADER_PIXELS, bitsPerByte, 1 + filenameLength, buffer, 0, 4, false);
+        long dataLength = ReadInt(buffer);                          // in bytes
+        long dataOffset = 5 + filenameLength;
+        long checksum = 0;
+        if ((flags & HiddenFile.FLAG_CHECKSUM) != 0){
+            img.Unpack(HiddenFile.HEADER_PIXELS, bitsPerByte, dataOffset, buffer, 0, 4, false);
+            checksum = ReadInt(buffer);
+            dataOffset += HiddenFile.CHECKSUM_LENGTH;
+        }
+        if (HiddenFile.HEADER_PIXELS + BitPacker.PixelsFor(dataOffset + dataLength, bitsPerByte) >
+                img.GetPixelCount()){
+            throw new IllegalArgumentException("Length of the hidden file exceeds the image capacity");
+        }
+        return new HiddenFileHeader(bitsPerByte, flags, new String(fileNameBytes), dataLength, checksum, dataOffset);
+    }
+
+    private static long ReadInt(byte[] buffer){
+        return (buffer[0] & 0xFF) |
+                ((buffer[1] & 0xFF) << 8) |
+                ((buffer[2] & 0xFF) << 16) |
+                ((long)(buffer[3] & 0xFF) << 24);
+    }
+}
@@ -0,0 +1,156 @@
+package cz.cuni.mff.hrbanh.steganography;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Locale;
+
+/**
+ * Plan of hiding a file in an image with the lowest bitsPerByte the file fits with, so that as few bits as possible
+ * are changed. The plan is computed only from the size of the image, which is read from the image header without
+ * decoding any pixels, so a file which does not fit is rejected before the image is loaded.
+ * Plans of one file for several images can be compared (e.g. by `slack`) to pick the best carrier.
+ */
+public final class HidePlan {
+    /**
+     * Value of bitsPerByte which is replaced by the planned bitsPerByte. It is never a valid bitsPerByte and
+     * ParseBitsPerByte returns it only for "auto".
+     */
+    public static final int AUTO = -1;
+
+    /**
+     * Lowest number of bits per byte the file fits with.
+     */
+    public final int bitsPerByte;
+    /**
+     * Number of pixels from the start of the image which are modified, including the metadata.
+     */
+    public final long pixels;
+    /**
+     * Number of rows from the top of the image which contain modified pixels.
+     */
+    public final int rows;
+    /**
+     * Number of bytes which would still fit into the image with `bitsPerByte`.
+     */
+    public final long slack;
+
+    private HidePlan(int bitsPerByte, long pixels, int rows, long slack){
+        this.bitsPerByte = bitsPerByte;
+        this.pixels = pixels;
+        this.rows = rows;
+        this.slack = slack;
+    }
+
+    /**
+     * Plan hiding a file in an image of the given size.
+     * @param width width of the image in pixels
+     * @param height height of the image in pixels
+     * @param fileName name of the hidden file stored in the metadata
+     * @param dataLength length of the file data in bytes as it is stored, i.e. after compression (see
+     *                   HiddenFile.CompressedLength)
+     * @return plan with the lowest bitsPerByte the file fits with
+     * @throws IOException if the file does not fit into the image even with 8 bits per byte.
+     */
+    public static HidePlan Create(int width, int height, String fileName, long dataLength) throws IOException{
+        long pixelCount = (long)width * height;
+        // metadata after the first 14 bytes and the data
+        long streamLength = 5 + fileName.getBytes().length + HiddenFile.CHECKSUM_LENGTH + dataLength;
+        for (int bitsPerByte = 1; bitsPerByte <= 8; bitsPerByte++){
+            long pixels = HiddenFile.HEADER_PIXELS + BitPacker.PixelsFor(streamLength, bitsPerByte);
+            if (pixels <= pixelCount && dataLength <= HiddenFile.MAX_DATA_LENGTH){
+                long free = (pixelCount - HiddenFile.HEADER_PIXELS) * BitPacker.BitsPerPixel(bitsPerByte) / 8;
+                int rows = (int)((pixels + width - 1) / width);
+                return new HidePlan(bitsPerByte, pixels, rows, free - streamLength);
+            }
+        }
+        throw new IOException("File of " + dataLength + " B does not fit into the image. At most " +
+                StegImage.Capacities(pixelCount)[7] + " B can be hidden with 8 bits per byte.");
+    }
+
+    /**
+     * Plan hiding a file in an image, reading only the size of the image.
+     * @param imgPath path to the image
+     * @param fileName name of the hidden file stored in the metadata
+     * @param dataLength length of the file data in bytes
+     * @return plan with the lowest bitsPerByte the file fits with
+     * @throws IOException if the image cannot be read or the file does not fit into it.
+     */
+    public static HidePlan Create(String imgPath, String fileName, long dataLength) throws IOException{
+        int[] size = StegImage.ReadSize(imgPath);
+        return Create(size[0], size[1], fileName, dataLength);
+    }
+
+    /**
+     * Plan hiding a file from disk in an image, reading only the size of the image.
+     * @param imgPath path to the image
+     * @param filePath path to the file
+     * @return plan with the lowest bitsPerByte the file fits with
+     * @throws IOException if the image or file cannot be read or the file does not fit into the image.
+     */
+    public static HidePlan ForFile(String imgPath, String filePath) throws IOException{
+        return ForFile(imgPath, filePath, HiddenFile.UNCOMPRESSED);
+    }
+
+    /**
+     * Plan hiding a file from disk which will be compressed in an image. The file is compressed once to find out
+     * its compressed length, so a file which only fits once compressed is planned correctly. This costs one more
+     * pass of Deflate over the file, but the image is not loaded until the plan succeeds.
+     * @param imgPath path to the image
+     * @param filePath path to the file
+     * @param compressionLevel Deflate compression level (0-9) of the file, or HiddenFile.UNCOMPRESSED
+     * @return plan with the lowest bitsPerByte the file fits with
+     * @throws IOException if the image or file cannot be read or the file does not fit into the image.
+     */
+    public static HidePlan ForFile(String imgPath, String filePath, int compressionLevel) throws IOException{
+        File file = new File(filePath);
+        if (!file.isFile()){
+            throw new FileNotFoundException(filePath);
+        }
+        long dataLength = file.length();
+        if (compressionLevel != HiddenFile.UNCOMPRESSED){
+            try (InputStream in = Files.newInputStream(file.toPath())){
+                dataLength = HiddenFile.CompressedLength(in, compressionLevel);
+            }
+        }
+        return Create(imgPath, filePath.substring(filePath.lastIndexOf('/')+1), dataLength);
+    }
+
+    /**
+     * Check that the planned file also fits with the given bitsPerByte, i.e. that it is not lower than the planned
+     * one. Used before a PAM image is copied to hide a file with a fixed bitsPerByte.
+     * @param bitsPerByte number of bits per byte the file will be hidden with
+     * @throws IOException if the file does not fit with `bitsPerByte`.
+     */
+    public void CheckFits(int bitsPerByte) throws IOException{
+        if (bitsPerByte < this.bitsPerByte){
+            throw new IOException("File does not fit into the image with " + bitsPerByte + " bits per byte, " +
+                    "at least " + this.bitsPerByte + " are needed.");
+        }
+    }
+
+    /**
+     * Parse a BITS_PER_BYTE argument, which is either a number between 1 and 8 or "auto".
+     * @param value argument
+     * @return bitsPerByte, or AUTO
+     * @throws IllegalArgumentException if the argument is neither "auto" nor a number between 1 and 8
+     */
+    public static int ParseBitsPerByte(String value) throws IllegalArgumentException{
+        if (value.equalsIgnoreCase("auto")){
+            return AUTO;
+        }
+        int bitsPerByte = Integer.parseInt(value);
+        if (bitsPerByte < 1 || bitsPerByte > 8){
+            throw new IllegalArgumentException("bitsPerByte must be between 1 and 8 or auto");
+        }
+        return bitsPerByte;
+    }
+
+    @Override
+    public String toString(){
+        return String.format(Locale.ROOT, "%d bits per byte, %d pixels (%d rows) modified, %d B to spare",
+                bitsPerByte, pixels, rows, slack);
+    }
+}
@@ -0,0 +1,200 @@
+package cz.cuni.mff.hrbanh.steganography;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of decoded images, so that repeated operations on the same image (capacities, hide, extract) decode it
+ * only once. Entries are keyed by the absolute path of the image and are valid only as long as the modification
+ * time and size of the file do not change. The total size of cached pixels is bounded, least recently used images
+ * are evicted first. Every StegImage returned by Load has its own copy of the pixels, so it can be modified
+ * by hiding a file without affecting the cache. Images returned by View share the cached pixels and cannot be
+ * modified, they are meant for extracting, listing and verifying.
+ * A cache with no memory (maxBytes 0) keeps nothing and loads every image lazily (see StegImage), so a single
+ * command converts only the rows it needs and copies nothing.
+ * PAM images are never decoded or cached, Open and OpenCopy map them instead (see MappedCarrier).
+ * The cache is thread-safe. Images are decoded outside of the lock, so one slow decode does not block other threads.
+ */
+public final class ImageCache {
+    /**
+     * Decoded image together with the state of the file it was decoded from.
+     */
+    private static final class Entry {
+        final long lastModified;
+        final long size;
+        final int width;
+        final int height;
+        final int[] pixels;
+
+        Entry(long lastModified, long size, int width, int height, int[] pixels){
+            this.lastModified = lastModified;
+            this.size = size;
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+        }
+
+        long Bytes(){
+            return 4L * pixels.length;
+        }
+    }
+
+    private final long maxBytes;
+    /**
+     * Entries in access order, the eldest entry is the least recently used one.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Create an empty cache.
+     * @param maxBytes maximal total size of cached pixels in bytes
+     */
+    public ImageCache(long maxBytes){
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Load an image to be modified, decoding it only if it is not cached or the file has changed since it was
+     * cached.
+     * @param path path to the image
+     * @return StegImage with its own copy of the pixels
+     * @throws IOException if the image cannot be loaded
+     */
+    public StegImage Load(String path) throws IOException{
+        return Get(path, true);
+    }
+
+    /**
+     * Load an image for reading only, decoding it only if it is not cached or the file has changed since it was
+     * cached. The pixels are not copied.
+     * @param path path to the image
+     * @return read-only StegImage sharing the cached pixels
+     * @throws IOException if the image cannot be loaded
+     */
+    public StegImage View(String path) throws IOException{
+        return Get(path, false);
+    }
+
+    /**
+     * Open an image for reading, picking the carrier by its extension: a PAM image is mapped read-only (see
+     * MappedCarrier), any other image is decoded through the cache (see View).
+     * @param path path to the image
+     * @return carrier which cannot be modified, it has to be closed
+     * @throws IOException if the image cannot be opened
+     */
+    public Carrier Open(String path) throws IOException{
+        return MappedCarrier.IsPam(path) ? MappedCarrier.Open(path, false) : View(path);
+    }
+
+    /**
+     * Open an image for hiding a file, picking the carrier by its extension: a PAM image is copied to
+     * Carrier.OutputPath(path) and the copy is mapped (see MappedCarrier.OpenCopy), so it already holds the hidden
+     * file once it is closed. Any other image is decoded through the cache (see Load) and has to be written
+     * afterwards.
+     * @param path path to the image
+     * @return carrier which can be modified, it has to be closed
+     * @throws IOException if the image cannot be opened or copied
+     */
+    public Carrier OpenCopy(String path) throws IOException{
+        return MappedCarrier.IsPam(path) ? MappedCarrier.OpenCopy(path) : Load(path);
+    }
+
+    private StegImage Get(String path, boolean copy) throws IOException{
+        if (maxBytes <= 0){
+            synchronized (this){
+                misses++;
+            }
+            return new StegImage(path, true);
+        }
+        File file = new File(path);
+        String key = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        long size = file.length();
+        synchronized (this){
+            Entry entry = entries.get(key);
+            if (entry != null && entry.lastModified == lastModified && entry.size == size){
+                hits++;
+                return new StegImage(path, entry.width, entry.height, entry.pixels, copy);
+            }
+            misses++;
+        }
+        StegImage img = new StegImage(path);
+        int[] pixels = copy ? img.pixels.clone() : img.pixels;
+        Put(key, new Entry(lastModified, size, img.GetWidth(), img.GetHeight(), pixels));
+        return copy ? img : new StegImage(path, img.GetWidth(), img.GetHeight(), pixels, false);
+    }
+
+    /**
+     * Get the maximal total size of cached pixels.
+     * @return size in bytes, 0 if the cache keeps nothing
+     */
+    public long GetMaxBytes(){
+        return maxBytes;
+    }
+
+    /**
+     * Insert an entry, replacing an older entry of the same file, and evict least recently used entries until
+     * the cache fits into `maxBytes`. Entries larger than the whole cache are not stored.
+     */
+    private synchronized void Put(String key, Entry entry){
+        if (entry.Bytes() > maxBytes){
+            return;
+        }
+        Entry old = entries.put(key, entry);
+        if (old != null){
+            bytes -= old.Bytes();
+        }
+        bytes += entry.Bytes();
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()){
+            Entry eldest = it.next().getValue();
+            it.remove();
+            bytes -= eldest.Bytes();
+            evictions++;
+        }
+    }
+
+    /**
+     * Remove all entries. Statistics are kept.
+     */
+    public synchronized void Clear(){
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized long GetHits(){
+        return hits;
+    }
+
+    public synchronized long GetMisses(){
+        return misses;
+    }
+
+    public synchronized long GetEvictions(){
+        return evictions;
+    }
+
+    /**
+     * Get the total size of cached pixels.
+     * @return size in bytes
+     */
+    public synchronized long GetBytes(){
+        return bytes;
+    }
+
+    /**
+     * Get a one-line summary of the cache usage.
+     * @return statistics of the cache
+     */
+    public synchronized String Stats(){
+        return "images: " + entries.size() + ", memory: " + bytes / 1024 + " kB of " + maxBytes / 1024 + " kB" +
+                ", hits: " + hits + ", misses: " + misses + ", evictions: " + evictions;
+    }
+}
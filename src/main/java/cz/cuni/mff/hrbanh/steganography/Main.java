@@ -2,32 +2,154 @@ package cz.cuni.mff.hrbanh.steganography;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
 import java.util.Scanner;
 
 public class Main {
     /**
-     * Hide a file in an image. Creates an instance of HiddenFile and calls its HideInImage method.
-     * Then save the image.
+     * Port used by the server mode when none is given.
+     */
+    private static final int DEFAULT_PORT = 8765;
+    /**
+     * Decoded images shared by all commands, so that an image used by several commands in interactive mode
+     * (or by several requests in server mode) is decoded only once. Limited to a quarter of the heap once
+     * KeepImages is called. A single command keeps no images and loads them lazily instead.
+     */
+    private static ImageCache cache = new ImageCache(0);
+    /**
+     * Png encoder used for hidden images, set by --png only while its command runs. If null, images are written
+     * by ImageIO.
+     */
+    private static PngWriter png = null;
+    /**
+     * Cache which keeps no images, for commands which read every image only once, like --verify.
+     */
+    private static final ImageCache NO_CACHE = new ImageCache(0);
+
+    /**
+     * Start keeping decoded images in the cache, for the interactive and server mode.
+     */
+    private static void KeepImages(){
+        if (cache.GetMaxBytes() == 0){
+            cache = new ImageCache(Runtime.getRuntime().maxMemory() / 4);
+        }
+    }
+
+    /**
+     * Save an image with a hidden file, by ImageIO or by the png encoder set by --png.
+     * @param img image to be saved
+     * @throws IOException if the image cannot be written
+     */
+    private static void Save(StegImage img) throws IOException{
+        if (png == null){
+            img.Write();
+        } else {
+            img.Write(png);
+        }
+    }
+
+    /**
+     * Operation hiding data in a carrier, see HideAndSave.
+     */
+    private interface HideAction {
+        void Run(Carrier img) throws IOException;
+    }
+
+    /**
+     * Open an image for hiding (see ImageCache.OpenCopy), run `action` on it and save it: a png is written by
+     * Save, a copy of a PAM image is written back when it is closed and deleted if the action fails.
+     * @param imgPath path to the original image
+     * @param action hides the data in the carrier
+     * @throws IOException if the image cannot be loaded or written, or the data cannot be hidden
+     */
+    private static void HideAndSave(String imgPath, HideAction action) throws IOException{
+        try (Carrier img = cache.OpenCopy(imgPath)){
+            action.Run(img);
+            if (img instanceof StegImage){
+                Save((StegImage)img);
+            }
+        } catch (IOException | RuntimeException e){
+            if (MappedCarrier.IsPam(imgPath)){
+                Files.deleteIfExists(Path.of(MappedCarrier.OutputPath(imgPath)));
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Hide a file in an image. Creates an instance of HiddenFile and calls its HideInImage method on the image
+     * opened by HideAndSave, which also saves it.
+     * The data is encoded in parallel on all cores.
      * @param imgPath path to image where data will be hidden
      * @param filePath path to file which will be hidden
-     * @param bitsPerByte number of bits per byte used for encoding
+     * @param bitsPerByte number of bits per byte used for encoding, or HidePlan.AUTO to use the lowest one the file
+     *                    fits with. The plan is made before the image is loaded.
+     * @param compressionLevel Deflate compression level (0-9) of the file, or HiddenFile.UNCOMPRESSED
      * @throws IOException if the image cannot be loaded or written
      */
-    private static void Hide(String imgPath, String filePath, int bitsPerByte) throws IOException{
-        HiddenFile hf = new HiddenFile(filePath, bitsPerByte);
-        StegImage img = hf.HideInImage(imgPath);
-        img.Write();
+    private static void Hide(String imgPath, String filePath, int bitsPerByte, int compressionLevel)
+            throws IOException{
+        if (bitsPerByte == HidePlan.AUTO){
+            HidePlan plan = HidePlan.ForFile(imgPath, filePath, compressionLevel);
+            System.out.println("++++ Plan: " + plan);
+            bitsPerByte = plan.bitsPerByte;
+        } else if (MappedCarrier.IsPam(imgPath)){
+            // a PAM image is copied before the file is hidden, a file which does not fit must not cost a copy
+            HidePlan.ForFile(imgPath, filePath, compressionLevel).CheckFits(bitsPerByte);
+        }
+        HiddenFile hf = new HiddenFile(filePath, bitsPerByte, compressionLevel);
+        HideAndSave(imgPath, img -> hf.HideInImage(img, true));
     }
 
     /**
-     * Extract a file from an image. Calls the static ExtractFromImage method of HiddenFile. The extracted
-     * file is saved in the current directory.
+     * Extract a file from an image opened through the cache. Calls the static ExtractToFile method of HiddenFile,
+     * which decodes the data
+     * in parallel on all cores. The extracted file is saved in the current directory.
      * @param imgPath path to image from which the file will be extracted
      * @throws IOException if the image cannot be read or the file cannot be written
      */
     private static void ExtractFile(String imgPath) throws IOException{
-        HiddenFile.ExtractFromImage(imgPath);
+        try (Carrier img = cache.Open(imgPath)){
+            HiddenFile.ExtractToFile(img, true);
+        }
+    }
+
+    /**
+     * Hide several files as an archive in an image and save the image, see HideAndSave.
+     * @param args command line arguments, args[1] is path to image, args[2] bits per byte and args[3] and following
+     * are paths to the files
+     * @throws IOException if the image or a file cannot be read or the image cannot be written
+     */
+    private static void HideArchive(String[] args) throws IOException{
+        HiddenArchive archive = new HiddenArchive(HidePlan.ParseBitsPerByte(args[2]));
+        for (int i = 3; i < args.length; i++){
+            archive.Add(args[i]);
+        }
+        if (archive.GetBitsPerByte() == HidePlan.AUTO){
+            System.out.println("++++ Plan: " + archive.Plan(args[1]));
+        } else if (MappedCarrier.IsPam(args[1])){
+            archive.Plan(args[1]).CheckFits(archive.GetBitsPerByte());
+        }
+        HideAndSave(args[1], img -> archive.HideInImage(img, true));
+    }
+
+    /**
+     * Print the entries of an archive hidden in an image.
+     * @param imgPath path to image
+     */
+    private static void ListArchive(String imgPath) throws IOException{
+        List<HiddenArchive.Entry> entries;
+        try (Carrier img = cache.Open(imgPath)){
+            entries = HiddenArchive.ReadIndex(img);
+        }
+        System.out.println("++++ Archive in image " + imgPath + " contains " + entries.size() + " files:");
+        for (HiddenArchive.Entry entry : entries){
+            System.out.println("    - " + entry);
+        }
     }
 
     /**
@@ -37,11 +159,11 @@ public class Main {
      */
     private static void PrintCapacities(String imgPath) throws IOException{
         // print capacities of picture
-        StegImage img = new StegImage(imgPath);
-        int[] capacitiesPerbPB = img.GetCapacity();
+        int[] size = StegImage.ReadSize(imgPath);                  // no pixels are needed
+        long[] capacitiesPerbPB = StegImage.Capacities((long)size[0] * size[1]);
         System.out.println("++++ Capacities for image " + imgPath + ":");
         for (int i = 0; i < 8; i++){
-            int cap = capacitiesPerbPB[i];
+            long cap = capacitiesPerbPB[i];
             String capacity = cap + " B";
             if (cap > 1024*10){
                 cap /= 1024;
@@ -55,6 +177,95 @@ public class Main {
         }
     }
 
+    /**
+     * Run a batch of jobs from a manifest or a directory on a pool of worker threads and print a report.
+     * For a directory, `args` may contain a file to hide in every image and the number of bits per byte,
+     * otherwise files are extracted from all images. The number of threads is the last optional argument.
+     * @param args command line arguments, args[1] is path to the manifest or directory
+     * @throws IOException if the manifest or directory cannot be read
+     */
+    private static void Batch(String[] args) throws IOException{
+        List<BatchRunner.Job> jobs;
+        int threadsArg;
+        if (new File(args[1]).isDirectory()){
+            if (args.length >= 4){
+                jobs = BatchRunner.ListDirectory(args[1], args[2], HidePlan.ParseBitsPerByte(args[3]));
+                threadsArg = 4;
+            } else {
+                jobs = BatchRunner.ListDirectory(args[1], null, 0);
+                threadsArg = 2;
+            }
+        } else {
+            jobs = BatchRunner.ReadManifest(args[1]);
+            threadsArg = 2;
+        }
+        int threads = args.length > threadsArg ? Integer.parseInt(args[threadsArg]) :
+                Runtime.getRuntime().availableProcessors();
+        System.out.println("++++ Running " + jobs.size() + " jobs on " + threads + " threads...");
+        long start = System.nanoTime();
+        List<BatchRunner.Result> results = BatchRunner.Run(jobs, threads);
+        BatchRunner.PrintReport(results, System.nanoTime() - start);
+    }
+
+    /**
+     * Start a StegServer on localhost. The server keeps running in the background until the program is killed.
+     * @param args command line arguments, optional args[1] is the port and args[2] the number of worker threads
+     * @throws IOException if the port cannot be bound
+     */
+    private static void Serve(String[] args) throws IOException{
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        KeepImages();
+        StegServer server = new StegServer(port, threads, cache);
+        server.Start();
+        Metrics.RegisterMBean();
+        System.out.println("++++ Listening on http://" + server.GetAddress().getHostString() + ":" +
+                server.GetAddress().getPort() + " with " + threads + " threads.");
+    }
+
+    /**
+     * Check the integrity of the files hidden in images by decoding their data and comparing its checksum with
+     * the one stored in the header. Nothing is written to disk and the images are not kept in the cache.
+     * @param args command line arguments, args[1] and following are paths to images
+     */
+    private static void Verify(String[] args){
+        for (int i = 1; i < args.length; i++){
+            try {
+                HiddenFileHeader header;
+                try (Carrier img = NO_CACHE.Open(args[i])){
+                    header = HiddenFile.Verify(img, true);
+                }
+                if (header.hasChecksum){
+                    System.out.println("++++ " + args[i] + ": OK, " + header);
+                } else {
+                    System.out.println("++++ " + args[i] + ": no checksum stored, only " +
+                            (header.compressed ? "decompression" : "the header") + " was checked, " + header);
+                }
+            } catch (IllegalArgumentException e){
+                System.out.println("---- " + args[i] + ": " + e.getMessage());
+            } catch (IOException e){
+                System.out.println("---- " + args[i] + ": cannot read image or data (" + e + ")");
+            }
+        }
+    }
+
+    /**
+     * Check whether images contain a hidden file by reading only the header (see HiddenFileHeader.Probe) and print
+     * its metadata.
+     * @param args command line arguments, args[1] and following are paths to images
+     */
+    private static void Probe(String[] args){
+        for (int i = 1; i < args.length; i++){
+            try {
+                System.out.println("++++ " + args[i] + ": " + HiddenFileHeader.Probe(args[i]));
+            } catch (IllegalArgumentException e){
+                System.out.println("---- " + args[i] + ": no hidden file (" + e.getMessage() + ")");
+            } catch (IOException e){
+                System.out.println("---- " + args[i] + ": cannot read image (" + e + ")");
+            }
+        }
+    }
+
     /**
      * Function to process command line arguments
      * @param args command line arguments
@@ -63,20 +274,69 @@ public class Main {
         String helpMessage = "Usage: java cz.cuni.mff.hrbanh.steganography.Main [OPTION]... [FILE]...\n" +
                 "Hide a file in an image or extract a file from an image.\n" +
                 "Options:\n" +
-                "  -h, --hide PATH_TO_IMAGE PATH_TO_FILE BITS_PER_BYTE\n" +
-                "                        Hide a file in an image.\n" +
+                "  -h, --hide PATH_TO_IMAGE PATH_TO_FILE BITS_PER_BYTE [COMPRESSION_LEVEL]\n" +
+                "                        Hide a file in an image. If COMPRESSION_LEVEL (0-9) is given, the file\n" +
+                "                        is compressed by Deflate first, extraction decompresses it.\n" +
+                "                        BITS_PER_BYTE can be \"auto\" to use the lowest value the file fits with.\n" +
                 "  -e, --extract PATH_TO_IMAGE\n" +
-                "                        Extract a file from an image.\n" +
+                "                        Extract a file from an image, or all files of an archive.\n" +
+                "  -a, --archive PATH_TO_IMAGE BITS_PER_BYTE PATH_TO_FILE...\n" +
+                "                        Hide several files as an archive in an image.\n" +
+                "  -l, --list PATH_TO_IMAGE\n" +
+                "                        List the files of an archive hidden in an image.\n" +
+                "  -x, --extract-entry PATH_TO_IMAGE FILE_NAME\n" +
+                "                        Extract a single file of an archive, decoding only its pixels.\n" +
+                "  --png LEVEL[,FILTER] COMMAND\n" +
+                "                        Run COMMAND, writing its hidden images with the parallel png encoder\n" +
+                "                        using compression LEVEL (0-9) and FILTER (none, sub, up, average, paeth,\n" +
+                "                        adaptive). Lower levels are faster but give bigger files. Opaque images\n" +
+                "                        are written without the alpha channel if it was not changed.\n" +
+                "  --stats [COMMAND]     Run COMMAND, then print the time spent decoding images, hiding and\n" +
+                "                        extracting data and writing images, with bytes and pixels processed,\n" +
+                "                        throughput and memory allocated. Without COMMAND, print the totals so far.\n" +
+                "  --stats-json PATH_TO_JSON [COMMAND]\n" +
+                "                        Run COMMAND, then write the same figures to a JSON file. In interactive\n" +
+                "                        and server mode they can also be read over JMX (" + Metrics.OBJECT_NAME + ").\n" +
+                "  --to-pam PATH_TO_IMAGE\n" +
+                "                        Save an image as an uncompressed PAM image. Files are hidden in a copy of\n" +
+                "                        a PAM image, by mapping it into memory instead of decoding it.\n" +
                 "  -c, --capacities PATH_TO_IMAGE\n" +
                 "                        Print the maximum size of files which can be hidden in a given image for every\n" +
                 "                        possible bitsPerByte encoding (1-8).\n" +
+                "  -p, --probe PATH_TO_IMAGE...\n" +
+                "                        Print name, size and bits per byte of the file hidden in each image,\n" +
+                "                        decoding only the header.\n" +
+                "  -v, --verify PATH_TO_IMAGE...\n" +
+                "                        Check the checksum of the file hidden in each image without writing it\n" +
+                "                        to disk.\n" +
+                "  -b, --batch PATH_TO_MANIFEST [THREADS]\n" +
+                "                        Run the hide and extract jobs listed in a manifest (one job per line:\n" +
+                "                        PATH_TO_IMAGE PATH_TO_FILE BITS_PER_BYTE [COMPRESSION_LEVEL] to hide,\n" +
+                "                        PATH_TO_IMAGE to extract)\n" +
+                "                        on THREADS worker threads (default: number of cores).\n" +
+                "  -b, --batch PATH_TO_DIRECTORY [PATH_TO_FILE BITS_PER_BYTE] [THREADS]\n" +
+                "                        Hide the file in every image of the directory, or extract files from\n" +
+                "                        all of them if no file is given.\n" +
+                "  -s, --server [PORT] [THREADS]\n" +
+                "                        Serve hide, extract and capacities requests over HTTP on localhost\n" +
+                "                        (default port " + DEFAULT_PORT + ").\n" +
+                "  --cache               Print statistics of the cache of decoded images.\n" +
                 "  -i, --interactive     Run in interactive mode.\n" +
                 "  --help                Print this message and exit.\n" +
                 "\n" +
                 "Examples:\n" +
                 "  java cz.cuni.mff.hrbanh.steganography.Main -h image.png file.txt 1\n" +
+                "  java cz.cuni.mff.hrbanh.steganography.Main -h image.png file.txt 2 9\n" +
+                "  java cz.cuni.mff.hrbanh.steganography.Main -h image.png file.txt auto\n" +
+                "  java cz.cuni.mff.hrbanh.steganography.Main --png 1,up -h image.png file.txt 2\n" +
                 "  java cz.cuni.mff.hrbanh.steganography.Main -e image.png\n" +
+                "  java cz.cuni.mff.hrbanh.steganography.Main --stats -h image.png file.txt 2\n" +
+                "  java cz.cuni.mff.hrbanh.steganography.Main -a image.png 2 a.txt b.txt c.txt\n" +
+                "  java cz.cuni.mff.hrbanh.steganography.Main -x steg_image.png b.txt\n" +
                 "  java cz.cuni.mff.hrbanh.steganography.Main -c image.png\n" +
+                "  java cz.cuni.mff.hrbanh.steganography.Main -p image.png other.png\n" +
+                "  java cz.cuni.mff.hrbanh.steganography.Main -v steg_image.png steg_other.png\n" +
+                "  java cz.cuni.mff.hrbanh.steganography.Main -b jobs.txt 8\n" +
                 "  java cz.cuni.mff.hrbanh.steganography.Main -i\n" +
                 "  java cz.cuni.mff.hrbanh.steganography.Main --help\n";
         switch (args[0]){
@@ -84,13 +344,11 @@ public class Main {
             case "-h":
             case "hide":
             case "h":
-                System.out.println("++++ Hiding file " + args[2] + " in image " +
-                        args[1] + " with " + args[3] + " bits per byte...");
-                Hide(args[1], args[2], Integer.parseInt(args[3]));
-                String newImgPath = args[1].substring(0, args[1].lastIndexOf(File.separator)+1) +
-                        "steg_" + args[1].substring(args[1].lastIndexOf(File.separator)+1);
-                newImgPath = newImgPath.substring(0, newImgPath.lastIndexOf(".")) + ".png";
-                System.out.println("++++ File hidden. Image saved as " + newImgPath);
+                int compressionLevel = args.length > 4 ? Integer.parseInt(args[4]) : HiddenFile.UNCOMPRESSED;
+                System.out.println("++++ Hiding file " + args[2] + " in image " + args[1] + " with " + args[3] +
+                        " bits per byte" + (args.length > 4 ? " and compression level " + args[4] : "") + "...");
+                Hide(args[1], args[2], HidePlan.ParseBitsPerByte(args[3]), compressionLevel);
+                System.out.println("++++ File hidden. Image saved as " + Carrier.OutputPath(args[1]));
                 break;
             case "--extract":
             case "-e":
@@ -100,12 +358,110 @@ public class Main {
                 ExtractFile(args[1]);
                 System.out.println("++++ File extracted to current directory.");
                 break;
+            case "--archive":
+            case "-a":
+            case "archive":
+            case "a":
+                System.out.println("++++ Hiding " + (args.length - 3) + " files in image " + args[1] + " with " +
+                        args[2] + " bits per byte...");
+                HideArchive(args);
+                System.out.println("++++ Files hidden. Image saved as " + Carrier.OutputPath(args[1]));
+                break;
+            case "--list":
+            case "-l":
+            case "list":
+            case "l":
+                ListArchive(args[1]);
+                break;
+            case "--extract-entry":
+            case "-x":
+            case "extract-entry":
+            case "x":
+                System.out.println("++++ Extracting file " + args[2] + " from image " + args[1]);
+                try (Carrier img = cache.Open(args[1])){
+                    HiddenArchive.ExtractToFile(img, args[2], true);
+                }
+                System.out.println("++++ File extracted to current directory.");
+                break;
+            case "--png":
+            case "png":
+                if (args.length < 3){
+                    System.out.println("--png needs a COMMAND. Use --help for help.");
+                    break;
+                }
+                PngWriter previous = png;
+                png = PngWriter.Parse(args[1], true);
+                try {
+                    ProcessArgs(Arrays.copyOfRange(args, 2, args.length));
+                } finally {
+                    png = previous;             // later commands in interactive mode use ImageIO again
+                }
+                break;
+            case "--stats":
+            case "stats":
+                try {
+                    if (args.length > 1){
+                        ProcessArgs(Arrays.copyOfRange(args, 1, args.length));
+                    }
+                } finally {
+                    System.out.print("++++ Metrics:\n" + Metrics.GLOBAL.getSummary());
+                }
+                break;
+            case "--stats-json":
+            case "stats-json":
+                try {
+                    if (args.length > 2){
+                        ProcessArgs(Arrays.copyOfRange(args, 2, args.length));
+                    }
+                } finally {
+                    Files.writeString(Path.of(args[1]), Metrics.GLOBAL.getJson() + "\n");
+                    System.out.println("++++ Metrics written to " + args[1]);
+                }
+                break;
+            case "--to-pam":
+            case "to-pam":
+                if (MappedCarrier.IsPam(args[1])){
+                    throw new IllegalArgumentException(args[1] + " already is a PAM image");
+                }
+                int dot = args[1].lastIndexOf('.');
+                String pamPath = (dot > 0 ? args[1].substring(0, dot) : args[1]) + ".pam";
+                MappedCarrier.Save(cache.View(args[1]), pamPath);
+                System.out.println("++++ Image saved as " + pamPath);
+                break;
             case "--capacities":
             case "-c":
             case "capacities":
             case "c":
                 PrintCapacities(args[1]);
                 break;
+            case "--probe":
+            case "-p":
+            case "probe":
+            case "p":
+                Probe(args);
+                break;
+            case "--verify":
+            case "-v":
+            case "verify":
+            case "v":
+                Verify(args);
+                break;
+            case "--batch":
+            case "-b":
+            case "batch":
+            case "b":
+                Batch(args);
+                break;
+            case "--server":
+            case "-s":
+            case "server":
+            case "s":
+                Serve(args);
+                break;
+            case "--cache":
+            case "cache":
+                System.out.println("++++ Image cache: " + cache.Stats());
+                break;
             case "--help":
             case "help":
                 System.out.println(helpMessage);
@@ -118,6 +474,8 @@ public class Main {
         try {
             if (args.length == 0 || args[0].equals("--interactive") || args[0].equals("-i") ||
                     args[0].equals("interactive") || args[0].equals("i")) {
+                Metrics.RegisterMBean();
+                KeepImages();
                 Scanner sc = new Scanner(System.in);
                 while (true){
                     System.out.println("Enter command:");
@@ -0,0 +1,360 @@
+package cz.cuni.mff.hrbanh.steganography;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Carrier backed by an uncompressed PAM image (P7, TUPLTYPE RGB_ALPHA, DEPTH 4, MAXVAL 255) which is mapped into
+ * memory instead of being decoded. Only the pixels touched by Pack and Unpack are read from the mapping, and Pack
+ * writes back only the pixels whose value changed, so extracting, probing and verifying cost time proportional to
+ * the size of the hidden file.
+ * Hiding leaves the original image untouched: it is first copied (see OpenCopy) and the copy is patched. The copy
+ * is a sequential copy of the whole file, so hiding costs one read and one write of the image plus the pixels of
+ * the hidden file. This is still much cheaper than decoding and encoding a png of the same size, but it grows with
+ * the image, not with the hidden file. Callers check that the file fits before the copy is made (see
+ * HidePlan.CheckFits), so a file which does not fit does not cost a copy.
+ * Each pixel is stored as bytes R, G, B, A, which read as a big-endian int and rotated right by 8 bits give the
+ * ARGB value used by BitPacker.
+ * The file is mapped in windows of WINDOW_SIZE bytes, so carriers larger than 2 GB can be used.
+ */
+public final class MappedCarrier implements Carrier, Closeable {
+    /**
+     * Size of one mapped window in bytes, a multiple of the size of a pixel.
+     */
+    static final int WINDOW_SIZE = 1 << 26;
+    /**
+     * Number of pixels converted at once by Pack and Unpack.
+     */
+    private static final int CHUNK_PIXELS = 1 << 20;
+
+    private final FileChannel channel;
+    private final boolean writable;
+    private final int width;
+    private final int height;
+    /**
+     * Position of the first pixel in the file, right after the header.
+     */
+    private final long dataStart;
+    /**
+     * Windows mapped so far, window `i` starts at pixel i * WINDOW_SIZE / 4.
+     */
+    private final MappedByteBuffer[] windows;
+
+    private MappedCarrier(FileChannel channel, boolean writable, int width, int height, long dataStart){
+        this.channel = channel;
+        this.writable = writable;
+        this.width = width;
+        this.height = height;
+        this.dataStart = dataStart;
+        this.windows = new MappedByteBuffer[(int)((4L * width * height + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+    }
+
+    /**
+     * Check whether a file is a PAM image judging by its extension.
+     * @param path path to the file
+     * @return true for the .pam extension
+     */
+    public static boolean IsPam(String path){
+        return path.toLowerCase(Locale.ROOT).endsWith(".pam");
+    }
+
+    /**
+     * Map a PAM image.
+     * @param path path to the image
+     * @param writable whether Pack may be used. The image is then modified in place.
+     * @return carrier backed by the file
+     * @throws IOException if the file cannot be opened or is not an RGB_ALPHA PAM image with 8-bit samples.
+     */
+    public static MappedCarrier Open(String path, boolean writable) throws IOException{
+        if (!new File(path).isFile()){
+            throw new FileNotFoundException(path);
+        }
+        int width = -1;
+        int height = -1;
+        int depth = -1;
+        int maxval = -1;
+        String tupleType = null;
+        long dataStart = 0;
+        try (InputStream in = Files.newInputStream(Path.of(path))){
+            String line = ReadLine(in);
+            dataStart += line.length() + 1;
+            if (!line.equals("P7")){
+                throw new IOException("Not a PAM image: " + path);
+            }
+            while (true){
+                line = ReadLine(in);
+                dataStart += line.length() + 1;
+                if (line.equals("ENDHDR")){
+                    break;
+                }
+                String[] parts = line.trim().split("\\s+", 2);
+                if (parts[0].isEmpty() || parts[0].startsWith("#") || parts.length < 2){
+                    continue;
+                }
+                switch (parts[0]){
+                    case "WIDTH": width = Integer.parseInt(parts[1]); break;
+                    case "HEIGHT": height = Integer.parseInt(parts[1]); break;
+                    case "DEPTH": depth = Integer.parseInt(parts[1]); break;
+                    case "MAXVAL": maxval = Integer.parseInt(parts[1]); break;
+                    case "TUPLTYPE": tupleType = parts[1].trim(); break;
+                    default: break;
+                }
+            }
+        } catch (NumberFormatException e){
+            throw new IOException("Malformed PAM header: " + path);
+        }
+        if (width <= 0 || height <= 0 || depth != 4 || maxval != 255 || !"RGB_ALPHA".equals(tupleType)){
+            throw new IOException("Unsupported PAM image, only RGB_ALPHA with 8-bit samples can be mapped: " + path);
+        }
+        FileChannel channel = writable ?
+                FileChannel.open(Path.of(path), StandardOpenOption.READ, StandardOpenOption.WRITE) :
+                FileChannel.open(Path.of(path), StandardOpenOption.READ);
+        if (channel.size() < dataStart + 4L * width * height){
+            channel.close();
+            throw new IOException("PAM image is truncated: " + path);
+        }
+        return new MappedCarrier(channel, writable, width, height, dataStart);
+    }
+
+    /**
+     * Copy a PAM image to OutputPath(path) and map the copy for writing, so that the original image is never
+     * modified. If the copy cannot be mapped, it is deleted.
+     * @param path path to the original image
+     * @return writable carrier backed by the copy
+     * @throws IOException if the image cannot be copied or is not an RGB_ALPHA PAM image with 8-bit samples.
+     */
+    public static MappedCarrier OpenCopy(String path) throws IOException{
+        return OpenCopy(path, Path.of(OutputPath(path)));
+    }
+
+    /**
+     * Copy a PAM image to `output` and map the copy for writing. The header is checked before anything is copied.
+     * If the copy cannot be mapped, it is deleted.
+     * @param path path to the original image
+     * @param output path to the copy, replaced if it exists
+     * @return writable carrier backed by the copy
+     * @throws IOException if the image cannot be copied or is not an RGB_ALPHA PAM image with 8-bit samples.
+     */
+    public static MappedCarrier OpenCopy(String path, Path output) throws IOException{
+        Open(path, false).close();
+        Files.copy(Path.of(path), output, StandardCopyOption.REPLACE_EXISTING);
+        try {
+            return Open(output.toString(), true);
+        } catch (IOException e){
+            Files.deleteIfExists(output);
+            throw e;
+        }
+    }
+
+    /**
+     * Get the path OpenCopy copies a PAM image loaded from `path` to: steg_ is prepended to the image name.
+     * @param path path to the original image
+     * @return path to the copy
+     */
+    public static String OutputPath(String path){
+        int nameStart = path.lastIndexOf(File.separator) + 1;
+        return path.substring(0, nameStart) + "steg_" + path.substring(nameStart);
+    }
+
+    /**
+     * Read one header line terminated by '\n', without the terminator.
+     */
+    private static String ReadLine(InputStream in) throws IOException{
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n'){
+            if (c < 0 || sb.length() > 1024){
+                throw new IOException("Malformed PAM header");
+            }
+            sb.append((char)c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Save the pixels of an image as an RGB_ALPHA PAM image, which can then be used as a mapped carrier.
+     * @param img image to be saved, all its pixels are converted
+     * @param path path to the new PAM image
+     * @throws IOException if the file cannot be written
+     */
+    public static void Save(StegImage img, String path) throws IOException{
+        img.EnsurePixels(img.GetPixelCount());
+        String header = "P7\nWIDTH " + img.GetWidth() + "\nHEIGHT " + img.GetHeight() +
+                "\nDEPTH 4\nMAXVAL 255\nTUPLTYPE RGB_ALPHA\nENDHDR\n";
+        try (Metrics.Timer timer = Metrics.GLOBAL.Start(Metrics.Phase.WRITE);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(Path.of(path)), 1 << 16))){
+            out.write(header.getBytes(StandardCharsets.US_ASCII));
+            for (int pixel : img.pixels){
+                out.writeInt(Integer.rotateLeft(pixel, 8));
+            }
+            timer.Count(4L * img.pixels.length, img.pixels.length);
+        }
+    }
+
+    @Override
+    public long GetPixelCount(){
+        return (long)width * height;
+    }
+
+    @Override
+    public int GetWidth(){
+        return width;
+    }
+
+    @Override
+    public int GetHeight(){
+        return height;
+    }
+
+    /**
+     * Hide bytes in the mapped pixels, see Carrier.Pack. The touched pixels are processed in chunks of
+     * CHUNK_PIXELS pixels, each of them is read from the mapping, packed and written back where it changed.
+     */
+    @Override
+    public void Pack(byte[] src, int offset, int length, int firstPixel, int bitsPerByte, long streamOffset,
+                     boolean parallel){
+        if (!writable){
+            throw new IllegalStateException("Carrier is opened for reading only");
+        }
+        int chunkBytes = ChunkBytes(bitsPerByte);
+        for (int done = 0; done < length; ){
+            int n = (int)Math.min(length - done, chunkBytes - (streamOffset + done) % chunkBytes);
+            long position = streamOffset + done;
+            long base = position - position % bitsPerByte;       // pixel-aligned start of the chunk in the stream
+            long pixel = firstPixel + 2 * (base / bitsPerByte);
+            int[] chunk = new int[(int)BitPacker.PixelsFor(position + n - base, bitsPerByte)];
+            CheckRange(pixel, chunk.length);
+            Read(pixel, chunk);
+            if (parallel){
+                BitPacker.PackParallel(src, offset + done, n, chunk, 0, bitsPerByte, position - base);
+            } else {
+                BitPacker.Pack(src, offset + done, n, chunk, 0, bitsPerByte, position - base);
+            }
+            WriteChanged(pixel, chunk);
+            done += n;
+        }
+    }
+
+    /**
+     * Recover bytes from the mapped pixels, see Carrier.Unpack.
+     */
+    @Override
+    public void Unpack(int firstPixel, int bitsPerByte, long streamOffset, byte[] dst, int offset, int length,
+                       boolean parallel){
+        int chunkBytes = ChunkBytes(bitsPerByte);
+        for (int done = 0; done < length; ){
+            int n = (int)Math.min(length - done, chunkBytes - (streamOffset + done) % chunkBytes);
+            long position = streamOffset + done;
+            long base = position - position % bitsPerByte;
+            long pixel = firstPixel + 2 * (base / bitsPerByte);
+            int[] chunk = new int[(int)BitPacker.PixelsFor(position + n - base, bitsPerByte)];
+            CheckRange(pixel, chunk.length);
+            Read(pixel, chunk);
+            if (parallel){
+                BitPacker.UnpackParallel(chunk, 0, bitsPerByte, position - base, dst, offset + done, n);
+            } else {
+                BitPacker.Unpack(chunk, 0, bitsPerByte, position - base, dst, offset + done, n);
+            }
+            done += n;
+        }
+    }
+
+    /**
+     * Number of stream bytes stored in one chunk of CHUNK_PIXELS pixels. A multiple of bitsPerByte, so every chunk
+     * starts at a pixel boundary.
+     */
+    private static int ChunkBytes(int bitsPerByte){
+        return CHUNK_PIXELS / 2 * bitsPerByte;
+    }
+
+    private void CheckRange(long pixel, int count){
+        if (pixel < 0 || pixel + count > GetPixelCount()){
+            throw new IllegalArgumentException("Image capacity is smaller than the hidden file size.");
+        }
+    }
+
+    /**
+     * Read `chunk.length` pixels starting at pixel `pixel` as ARGB values.
+     */
+    private void Read(long pixel, int[] chunk){
+        for (int i = 0; i < chunk.length; ){
+            long position = 4 * (pixel + i);
+            MappedByteBuffer window = Window(position);
+            int index = (int)(position % WINDOW_SIZE);
+            int count = Math.min(chunk.length - i, (WINDOW_SIZE - index) / 4);
+            for (int j = 0; j < count; j++, index += 4){
+                chunk[i + j] = Integer.rotateRight(window.getInt(index), 8);
+            }
+            i += count;
+        }
+    }
+
+    /**
+     * Write ARGB values of `chunk` starting at pixel `pixel`, skipping pixels whose value did not change, so that
+     * untouched pages of the mapping are not written to disk.
+     */
+    private void WriteChanged(long pixel, int[] chunk){
+        for (int i = 0; i < chunk.length; ){
+            long position = 4 * (pixel + i);
+            MappedByteBuffer window = Window(position);
+            int index = (int)(position % WINDOW_SIZE);
+            int count = Math.min(chunk.length - i, (WINDOW_SIZE - index) / 4);
+            for (int j = 0; j < count; j++, index += 4){
+                int value = Integer.rotateLeft(chunk[i + j], 8);
+                if (window.getInt(index) != value){
+                    window.putInt(index, value);
+                }
+            }
+            i += count;
+        }
+    }
+
+    /**
+     * Get the window containing byte `position` of the pixel data, mapping it on first use.
+     */
+    private synchronized MappedByteBuffer Window(long position){
+        int i = (int)(position / WINDOW_SIZE);
+        if (windows[i] == null){
+            long start = (long)i * WINDOW_SIZE;
+            long size = Math.min(WINDOW_SIZE, 4L * width * height - start);
+            try {
+                windows[i] = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                        dataStart + start, size);
+            } catch (IOException e){
+                throw new UncheckedIOException(e);
+            }
+        }
+        return windows[i];
+    }
+
+    /**
+     * Flush modified pixels to disk and close the file.
+     * @throws IOException if the file cannot be written
+     */
+    @Override
+    public void close() throws IOException{
+        if (writable){
+            for (MappedByteBuffer window : windows){
+                if (window != null){
+                    window.force();
+                }
+            }
+        }
+        channel.close();
+    }
+}
@@ -0,0 +1,289 @@
+package cz.cuni.mff.hrbanh.steganography;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of timers and counters for each phase of hiding and extracting: decoding an image (LOAD), moving bits
+ * into pixels (PACK), recovering them (UNPACK) and encoding the image (WRITE). For every phase it counts the number
+ * of runs, the time spent, the number of bytes and pixels processed and the memory allocated by the measuring
+ * thread (work done by other threads, e.g. by the parallel BitPacker methods, is not included).
+ * Bytes are the size of the image file for LOAD, the hidden data and metadata for PACK and UNPACK and the pixel data
+ * (4 bytes per pixel) for WRITE. PACK and UNPACK measure only the bit packing: reading the hidden file, compressing,
+ * checksumming and writing the extracted data are excluded by pausing the timer (see Timer.Pause).
+ * A timer started while another one runs on the same thread pauses the outer one until it is closed, so the phases
+ * add up: e.g. the lazy conversion of image rows is measured as LOAD (see Extend) even when PACK asks for it.
+ * The counters are thread-safe, so one registry collects all jobs of a batch or all requests of a server.
+ * The registry can be printed as a summary, exported as JSON or read over JMX.
+ */
+public final class Metrics implements MetricsMBean {
+    /**
+     * Phase of processing an image.
+     */
+    public enum Phase { LOAD, PACK, UNPACK, WRITE }
+
+    /**
+     * Registry used by all classes of the program.
+     */
+    public static final Metrics GLOBAL = new Metrics();
+    /**
+     * Name the registry is registered under in the platform MBean server.
+     */
+    public static final String OBJECT_NAME = "cz.cuni.mff.hrbanh.steganography:type=Metrics";
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean ALLOCATION_SUPPORTED = THREADS instanceof com.sun.management.ThreadMXBean &&
+            ((com.sun.management.ThreadMXBean)THREADS).isThreadAllocatedMemorySupported() &&
+            ((com.sun.management.ThreadMXBean)THREADS).isThreadAllocatedMemoryEnabled();
+
+    private final LongAdder[] runs = NewAdders();
+    private final LongAdder[] nanos = NewAdders();
+    private final LongAdder[] bytes = NewAdders();
+    private final LongAdder[] pixels = NewAdders();
+    private final LongAdder[] allocated = NewAdders();
+    /**
+     * Innermost open timer of each thread.
+     */
+    private final ThreadLocal<Timer> running = new ThreadLocal<>();
+
+    /**
+     * Measurement of one run of a phase, recorded when it is closed.
+     */
+    public final class Timer implements AutoCloseable {
+        private final Phase phase;
+        /**
+         * Whether closing the timer counts a new run of the phase, false for timers created by Extend.
+         */
+        private final boolean newRun;
+        /**
+         * Timer which was running on this thread when this one started, and whether this one paused it.
+         */
+        private final Timer outer;
+        private final boolean pausedOuter;
+        private final long start;
+        private final long startAllocated;
+        private long bytes;
+        private long pixels;
+        /**
+         * Time and allocation excluded by Pause so far.
+         */
+        private long pausedNanos;
+        private long pausedAllocated;
+        /**
+         * Time and allocation when the timer was paused, -1 if it is running.
+         */
+        private long pausedAt = -1;
+        private long pausedAtAllocated;
+
+        private Timer(Phase phase, boolean newRun){
+            this.phase = phase;
+            this.newRun = newRun;
+            this.outer = running.get();
+            this.pausedOuter = outer != null && outer.pausedAt < 0;
+            if (pausedOuter){
+                outer.Pause();
+            }
+            running.set(this);
+            this.startAllocated = AllocatedBytes();
+            this.start = System.nanoTime();
+        }
+
+        /**
+         * Add processed bytes and pixels to this run.
+         * @param bytes number of bytes
+         * @param pixels number of pixels
+         */
+        public void Count(long bytes, long pixels){
+            this.bytes += bytes;
+            this.pixels += pixels;
+        }
+
+        /**
+         * Stop measuring until Resume is called, e.g. while the data is read or written by a stream which does not
+         * belong to the phase. Does nothing if the timer is already paused.
+         */
+        public void Pause(){
+            if (pausedAt < 0){
+                pausedAtAllocated = AllocatedBytes();
+                pausedAt = System.nanoTime();
+            }
+        }
+
+        /**
+         * Continue measuring after Pause. Does nothing if the timer is running.
+         */
+        public void Resume(){
+            if (pausedAt >= 0){
+                pausedNanos += System.nanoTime() - pausedAt;
+                pausedAllocated += AllocatedBytes() - pausedAtAllocated;
+                pausedAt = -1;
+            }
+        }
+
+        @Override
+        public void close(){
+            Resume();
+            long elapsed = System.nanoTime() - start - pausedNanos;
+            Record(phase, newRun ? 1 : 0, elapsed, bytes, pixels,
+                    Math.max(0, AllocatedBytes() - startAllocated - pausedAllocated));
+            if (outer == null){
+                running.remove();
+            } else {
+                running.set(outer);
+                if (pausedOuter){
+                    outer.Resume();
+                }
+            }
+        }
+    }
+
+    private static LongAdder[] NewAdders(){
+        LongAdder[] adders = new LongAdder[Phase.values().length];
+        for (int i = 0; i < adders.length; i++){
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Bytes allocated by the current thread so far, or 0 if the JVM does not measure it.
+     */
+    private static long AllocatedBytes(){
+        return ALLOCATION_SUPPORTED ? ((com.sun.management.ThreadMXBean)THREADS).getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    /**
+     * Start measuring a run of a phase. Use with try-with-resources, the run is recorded when the timer is closed.
+     * @param phase measured phase
+     * @return running timer
+     */
+    public Timer Start(Phase phase){
+        return new Timer(phase, true);
+    }
+
+    /**
+     * Start measuring more work of a run of a phase which was already counted, e.g. converting the rows of a lazily
+     * loaded image. The time, bytes, pixels and allocation are added to the phase, the number of runs is not.
+     * @param phase measured phase
+     * @return running timer
+     */
+    public Timer Extend(Phase phase){
+        return new Timer(phase, false);
+    }
+
+    /**
+     * Record a run of a phase measured elsewhere.
+     */
+    public void Record(Phase phase, long nanos, long bytes, long pixels, long allocated){
+        Record(phase, 1, nanos, bytes, pixels, allocated);
+    }
+
+    private void Record(Phase phase, long runs, long nanos, long bytes, long pixels, long allocated){
+        int i = phase.ordinal();
+        this.runs[i].add(runs);
+        this.nanos[i].add(nanos);
+        this.bytes[i].add(bytes);
+        this.pixels[i].add(pixels);
+        this.allocated[i].add(allocated);
+    }
+
+    public long GetRuns(Phase phase){
+        return runs[phase.ordinal()].sum();
+    }
+
+    public long GetNanos(Phase phase){
+        return nanos[phase.ordinal()].sum();
+    }
+
+    public long GetBytes(Phase phase){
+        return bytes[phase.ordinal()].sum();
+    }
+
+    public long GetPixels(Phase phase){
+        return pixels[phase.ordinal()].sum();
+    }
+
+    public long GetAllocated(Phase phase){
+        return allocated[phase.ordinal()].sum();
+    }
+
+    /**
+     * Get the throughput of a phase.
+     * @param phase phase
+     * @return processed MB (2^20 bytes) per second of time spent in the phase
+     */
+    public double GetThroughput(Phase phase){
+        long time = GetNanos(phase);
+        return time == 0 ? 0 : GetBytes(phase) / (1024.0 * 1024.0) / (time / 1e9);
+    }
+
+    /**
+     * Set all counters to zero.
+     */
+    @Override
+    public void Reset(){
+        for (Phase phase : Phase.values()){
+            int i = phase.ordinal();
+            runs[i].reset();
+            nanos[i].reset();
+            bytes[i].reset();
+            pixels[i].reset();
+            allocated[i].reset();
+        }
+    }
+
+    /**
+     * Get a summary with one line per phase which has run at least once.
+     * @return human readable summary
+     */
+    @Override
+    public String getSummary(){
+        StringBuilder sb = new StringBuilder();
+        for (Phase phase : Phase.values()){
+            if (GetRuns(phase) == 0){
+                continue;
+            }
+            sb.append(String.format(Locale.ROOT, "    - %-6s %4d runs %10.1f ms %12d B %12d px %9.2f MB/s %10d kB allocated%n",
+                    phase.name().toLowerCase(Locale.ROOT), GetRuns(phase), GetNanos(phase) / 1e6, GetBytes(phase),
+                    GetPixels(phase), GetThroughput(phase), GetAllocated(phase) / 1024));
+        }
+        return sb.length() == 0 ? "    - nothing measured yet\n" : sb.toString();
+    }
+
+    /**
+     * Export all counters as a JSON object with one member per phase.
+     * @return JSON document
+     */
+    @Override
+    public String getJson(){
+        StringBuilder sb = new StringBuilder("{");
+        Phase[] phases = Phase.values();
+        for (int i = 0; i < phases.length; i++){
+            Phase phase = phases[i];
+            sb.append(String.format(Locale.ROOT, "%s\"%s\":{\"runs\":%d,\"nanos\":%d,\"bytes\":%d,\"pixels\":%d," +
+                            "\"mbPerSecond\":%.3f,\"allocatedBytes\":%d}", i == 0 ? "" : ",",
+                    phase.name().toLowerCase(Locale.ROOT), GetRuns(phase), GetNanos(phase), GetBytes(phase),
+                    GetPixels(phase), GetThroughput(phase), GetAllocated(phase)));
+        }
+        return sb.append("}").toString();
+    }
+
+    /**
+     * Register GLOBAL in the platform MBean server under OBJECT_NAME, so that it can be read by JMX clients
+     * such as jconsole. Does nothing if it is already registered.
+     */
+    public static void RegisterMBean(){
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(GLOBAL, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e){
+            // registered before
+        } catch (JMException e){
+            throw new IllegalStateException("Cannot register metrics MBean", e);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package cz.cuni.mff.hrbanh.steganography;
+
+/**
+ * Management interface of Metrics. JMX derives the attribute names from the getters, so they follow
+ * the JavaBeans naming instead of the naming used elsewhere in the program.
+ */
+public interface MetricsMBean {
+    /**
+     * @return human readable summary of all phases
+     */
+    String getSummary();
+
+    /**
+     * @return all counters as a JSON object
+     */
+    String getJson();
+
+    /**
+     * Set all counters to zero.
+     */
+    void Reset();
+}
@@ -1,16 +1,38 @@
 package cz.cuni.mff.hrbanh.steganography;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
 
 /**
  * Class for storing data of an image into which we will encode a hidde file and subsequently save it.
+ * The pixels are stored directly in the DataBuffer of a TYPE_INT_ARGB BufferedImage, which is written to disk
+ * without any further copy. If the decoded image already is TYPE_INT_ARGB, its own DataBuffer is used.
+ * Otherwise the decoded image is converted to ARGB strip by strip. In lazy mode a strip is only converted once
+ * EnsurePixels asks for it, so only the part of the image touched by the hidden file is converted.
  */
-public final class StegImage {
+public final class StegImage implements Carrier {
     /**
      * Pixels of the underlying BufferedImage. Values are in the ARGB color space.
+     * In lazy mode only the first pixels requested by EnsurePixels are valid.
      */
     public int[] pixels;
 
@@ -23,19 +45,57 @@ public final class StegImage {
      */
     private int height;
     private final String path;
+    /**
+     * TYPE_INT_ARGB image backed by `pixels`.
+     */
+    private BufferedImage argb;
+    /**
+     * Decoded image whose rows are not converted to `pixels` yet, null once all rows are converted.
+     */
+    private BufferedImage source;
+    /**
+     * Number of rows of `source` already converted to `pixels`.
+     */
+    private int convertedRows;
+
+    /**
+     * Number of pixels of the whole image. Larger than pixels.length if only the top rows were loaded.
+     */
+    private long pixelCount;
+
+    /**
+     * Whether the pixels are shared with ImageCache, Pack then fails.
+     */
+    private boolean readOnly;
+
+    /**
+     * Number of rows converted at once.
+     */
+    private static final int STRIP_ROWS = 64;
 
     /**
      * Get the maximal size of a file which can be stored in this image
      * for every possible bitsPerByte encoding
-     * @return int[8] - max file sizes.
+     * @return long[8] - max file sizes.
+     */
+    public long[] GetCapacity(){
+        return Capacities(pixelCount);
+    }
+
+    /**
+     * Get the maximal size of a file which can be stored in an image with `pixelCount` pixels
+     * for every possible bitsPerByte encoding
+     * @param pixelCount number of pixels of the image
+     * @return long[8] - max file sizes.
      */
-    public int[] GetCapacity(){
-        int[] capacitiesPerbPB = new int[8];
-        int numPixels = pixels.length - 28;                 // not including magic number
+    public static long[] Capacities(long pixelCount){
+        long[] capacitiesPerbPB = new long[8];
+        long numPixels = pixelCount - 28;                   // not including magic number
         for (int i = 1; i <= 8; i++){
             capacitiesPerbPB[i-1] = numPixels * 4 * i;      // in bits
             capacitiesPerbPB[i-1] /= 8;                     // in bytes
-            capacitiesPerbPB[i-1] -= 259;                   // not rest of header
+            capacitiesPerbPB[i-1] -= 263;                   // not rest of header
+            capacitiesPerbPB[i-1] = Math.max(0, Math.min(capacitiesPerbPB[i-1], HiddenFile.MAX_DATA_LENGTH));
         }
         return capacitiesPerbPB;                            // in bytes
     }
@@ -43,14 +103,155 @@ public final class StegImage {
     /**
      * Get the pixels of the image
      * @param path path to the image
+     * @param lazy if true, rows are converted to ARGB only when requested by EnsurePixels
      * @throws IOException if the image cannot be loaded
      */
-    private void Load(String path) throws IOException{
+    private void Load(String path, boolean lazy) throws IOException{
         File file = new File(path);
-        BufferedImage img = ImageIO.read(file);
+        if (!file.isFile()){
+            throw new FileNotFoundException(path);
+        }
+        try (Metrics.Timer timer = Metrics.GLOBAL.Start(Metrics.Phase.LOAD)){
+            BufferedImage img = ImageIO.read(file);
+            if (img == null){
+                throw new IOException("Unsupported image format: " + path);
+            }
+            Init(img, lazy);
+            pixelCount = pixels.length;
+            timer.Count(file.length(), pixelCount);
+        }
+    }
+
+    /**
+     * Set up `pixels` for a decoded image, converting it to ARGB unless `lazy` is true.
+     */
+    private void Init(BufferedImage img, boolean lazy){
         width = img.getWidth();
         height = img.getHeight();
-        pixels = img.getRGB(0, 0, width, height, null, 0, width);
+        if (IsPackedArgb(img)){
+            argb = img;
+            pixels = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+            convertedRows = height;
+            return;
+        }
+        argb = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        pixels = ((DataBufferInt)argb.getRaster().getDataBuffer()).getData();
+        source = img;
+        convertedRows = 0;
+        if (!lazy){
+            EnsurePixels(pixels.length);
+        }
+    }
+
+    /**
+     * Check whether the pixels of `img` are stored as one ARGB int per pixel without any padding,
+     * so that its DataBuffer can be used as `pixels` directly.
+     */
+    private static boolean IsPackedArgb(BufferedImage img){
+        Raster raster = img.getRaster();
+        return img.getType() == BufferedImage.TYPE_INT_ARGB &&
+                raster.getDataBuffer().getNumBanks() == 1 &&
+                raster.getDataBuffer().getOffset() == 0 &&
+                raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0 &&
+                raster.getSampleModel() instanceof SinglePixelPackedSampleModel &&
+                ((SinglePixelPackedSampleModel)raster.getSampleModel()).getScanlineStride() == img.getWidth();
+    }
+
+    /**
+     * Make sure the first `count` pixels are converted to ARGB and stored in `pixels`. Conversion is done
+     * in strips of whole rows. Does nothing for rows which were already converted.
+     * The conversion is measured as part of LOAD, also when Pack, Unpack or Write asks for it.
+     * @param count number of pixels from the start of the image which will be accessed
+     */
+    public void EnsurePixels(long count){
+        if (source == null || width == 0){
+            return;
+        }
+        int rows = (int)Math.min(height, (count + width - 1) / width);
+        if (convertedRows >= rows){
+            return;
+        }
+        Metrics.Timer timer = Metrics.GLOBAL.Extend(Metrics.Phase.LOAD);       // pixels were counted by Load
+        try {
+            while (convertedRows < rows){
+                int stripRows = Math.min(STRIP_ROWS, height - convertedRows);
+                ConvertRows(convertedRows, stripRows);
+                convertedRows += stripRows;
+            }
+        } finally {
+            timer.close();
+        }
+        if (convertedRows == height){
+            source = null;          // decoded image is no longer needed
+        }
+    }
+
+    /**
+     * Hide bytes in the pixels, converting the rows they are stored in first, see Carrier.Pack.
+     */
+    @Override
+    public void Pack(byte[] src, int offset, int length, int firstPixel, int bitsPerByte, long streamOffset,
+                     boolean parallel){
+        if (readOnly){
+            throw new IllegalStateException("Image " + path + " is opened for reading only");
+        }
+        EnsurePixels(firstPixel + BitPacker.PixelsFor(streamOffset + length, bitsPerByte));
+        if (parallel){
+            BitPacker.PackParallel(src, offset, length, pixels, firstPixel, bitsPerByte, streamOffset);
+        } else {
+            BitPacker.Pack(src, offset, length, pixels, firstPixel, bitsPerByte, streamOffset);
+        }
+    }
+
+    /**
+     * Recover bytes from the pixels, converting the rows they are stored in first, see Carrier.Unpack.
+     */
+    @Override
+    public void Unpack(int firstPixel, int bitsPerByte, long streamOffset, byte[] dst, int offset, int length,
+                       boolean parallel){
+        EnsurePixels(firstPixel + BitPacker.PixelsFor(streamOffset + length, bitsPerByte));
+        if (parallel){
+            BitPacker.UnpackParallel(pixels, firstPixel, bitsPerByte, streamOffset, dst, offset, length);
+        } else {
+            BitPacker.Unpack(pixels, firstPixel, bitsPerByte, streamOffset, dst, offset, length);
+        }
+    }
+
+    /**
+     * Convert `rows` rows of `source` starting at row `y` to ARGB and store them directly in `pixels`.
+     * 8-bit interleaved sRGB rasters (as produced by the JPEG and PNG readers) are read from their DataBuffer,
+     * other images are converted by their ColorModel using BufferedImage.getRGB.
+     */
+    private void ConvertRows(int y, int rows){
+        Raster raster = source.getRaster();
+        ColorModel cm = source.getColorModel();
+        if (raster.getDataBuffer() instanceof DataBufferByte &&
+                raster.getSampleModel() instanceof ComponentSampleModel &&
+                cm.getColorSpace().isCS_sRGB() && !cm.isAlphaPremultiplied() &&
+                raster.getDataBuffer().getNumBanks() == 1 && raster.getDataBuffer().getOffset() == 0 &&
+                raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0 &&
+                (raster.getNumBands() == 3 || raster.getNumBands() == 4) && cm.getComponentSize(0) == 8) {
+            ComponentSampleModel sm = (ComponentSampleModel)raster.getSampleModel();
+            byte[] data = ((DataBufferByte)raster.getDataBuffer()).getData();
+            int[] bandOffsets = sm.getBandOffsets();
+            int r = bandOffsets[0];
+            int g = bandOffsets[1];
+            int b = bandOffsets[2];
+            boolean hasAlpha = sm.getNumBands() == 4;
+            int a = hasAlpha ? bandOffsets[3] : 0;
+            int pixelStride = sm.getPixelStride();
+            for (int row = y; row < y + rows; row++){
+                int src = row * sm.getScanlineStride();
+                int dst = row * width;
+                for (int x = 0; x < width; x++, src += pixelStride){
+                    int alpha = hasAlpha ? data[src + a] & 0xFF : 0xFF;
+                    pixels[dst + x] = alpha << 24 | (data[src + r] & 0xFF) << 16 |
+                            (data[src + g] & 0xFF) << 8 | (data[src + b] & 0xFF);
+                }
+            }
+            return;
+        }
+        source.getRGB(0, y, width, rows, pixels, y * width, width);
     }
 
     /**
@@ -59,22 +260,286 @@ public final class StegImage {
      * @throws IOException if the image cannot be loaded
      */
     public StegImage(String path) throws IOException{
+        this(path, false);
+    }
+
+    /**
+     * Create a StegImage from an image file
+     * @param path path to the image
+     * @param lazy if true, `pixels` are converted to ARGB only when requested by EnsurePixels
+     * @throws IOException if the image cannot be loaded
+     */
+    public StegImage(String path, boolean lazy) throws IOException{
+        this.path = path;
+        Load(path, lazy);
+    }
+
+    /**
+     * Create a StegImage containing only the top rows of an image file which hold the first `count` pixels.
+     * Only those rows are decoded, which makes reading the header of a hidden file much cheaper than loading
+     * the whole image. The JPEG decoder stops after the requested source region by itself, but the PNG decoder
+     * inflates and unfilters every row of the image even if a region is set, so reading a png is aborted by
+     * StopAfterRows once the last requested row is decoded. Interlaced png images are still decoded whole, their
+     * top rows are only complete after the last pass. GetPixelCount and GetCapacity still describe the whole
+     * image. The returned image is meant for reading only and cannot be written.
+     * @param path path to the image
+     * @param count number of pixels from the start of the image which are needed
+     * @return StegImage whose `pixels` hold only the top rows
+     * @throws IOException if the image cannot be loaded
+     */
+    public static StegImage LoadTop(String path, long count) throws IOException{
+        File file = new File(path);
+        if (!file.isFile()){
+            throw new FileNotFoundException(path);
+        }
+        try (ImageInputStream iis = ImageIO.createImageInputStream(file)){
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()){
+                throw new IOException("Unsupported image format: " + path);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                int rows = (int)Math.max(1, Math.min(height, (count + width - 1) / width));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(new Rectangle(0, 0, width, rows));
+                if (Arrays.asList(reader.getOriginatingProvider().getFormatNames()).contains("png")){
+                    reader.addIIOReadUpdateListener(new StopAfterRows(rows));
+                }
+                try (Metrics.Timer timer = Metrics.GLOBAL.Start(Metrics.Phase.LOAD)){
+                    StegImage img = new StegImage(path, reader.read(0, param));
+                    img.pixelCount = (long)width * height;
+                    timer.Count(0, (long)width * rows);
+                    return img;
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Listener aborting a read once the first `rows` rows of the image are decoded. Only rows decoded in a pass
+     * which covers every pixel (i.e. not an Adam7 pass of an interlaced png) count, so that the aborted image
+     * holds the final values of all requested rows.
+     */
+    private static final class StopAfterRows implements IIOReadUpdateListener {
+        private final int rows;
+
+        StopAfterRows(int rows){
+            this.rows = rows;
+        }
+
+        @Override
+        public void imageUpdate(ImageReader source, BufferedImage theImage, int minX, int minY, int width, int height,
+                                int periodX, int periodY, int[] bands){
+            if (periodX == 1 && periodY == 1 && minY + height >= rows){
+                source.abort();
+            }
+        }
+
+        @Override
+        public void passStarted(ImageReader source, BufferedImage theImage, int pass, int minPass, int maxPass,
+                                int minX, int minY, int periodX, int periodY, int[] bands){
+        }
+
+        @Override
+        public void passComplete(ImageReader source, BufferedImage theImage){
+        }
+
+        @Override
+        public void thumbnailPassStarted(ImageReader source, BufferedImage theThumbnail, int pass, int minPass,
+                                         int maxPass, int minX, int minY, int periodX, int periodY, int[] bands){
+        }
+
+        @Override
+        public void thumbnailUpdate(ImageReader source, BufferedImage theThumbnail, int minX, int minY, int width,
+                                    int height, int periodX, int periodY, int[] bands){
+        }
+
+        @Override
+        public void thumbnailPassComplete(ImageReader source, BufferedImage theThumbnail){
+        }
+    }
+
+    /**
+     * Read the width and height of an image from its header, without decoding any pixels.
+     * PAM images are read by MappedCarrier.
+     * @param path path to the image
+     * @return {width, height}
+     * @throws IOException if the image cannot be read
+     */
+    public static int[] ReadSize(String path) throws IOException{
+        if (MappedCarrier.IsPam(path)){
+            try (MappedCarrier carrier = MappedCarrier.Open(path, false)){
+                return new int[]{carrier.GetWidth(), carrier.GetHeight()};
+            }
+        }
+        File file = new File(path);
+        if (!file.isFile()){
+            throw new FileNotFoundException(path);
+        }
+        try (ImageInputStream iis = ImageIO.createImageInputStream(file)){
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()){
+                throw new IOException("Unsupported image format: " + path);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                return new int[]{reader.getWidth(0), reader.getHeight(0)};
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Create a StegImage from an already decoded image.
+     */
+    private StegImage(String path, BufferedImage img){
         this.path = path;
-        Load(path);
+        Init(img, false);
+        pixelCount = pixels.length;
+    }
+
+    /**
+     * Create a StegImage from already decoded pixels, e.g. from ImageCache. If `copy` is true, the pixels are
+     * copied, so the new image can be modified without affecting `pixels`. Otherwise the image uses `pixels`
+     * directly and is read-only.
+     * @param path path to the image the pixels were loaded from
+     * @param width width of the image in pixels
+     * @param height height of the image in pixels
+     * @param pixels ARGB pixels, row by row
+     * @param copy whether to copy the pixels
+     */
+    StegImage(String path, int width, int height, int[] pixels, boolean copy){
+        this.path = path;
+        this.width = width;
+        this.height = height;
+        if (copy){
+            argb = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            this.pixels = ((DataBufferInt)argb.getRaster().getDataBuffer()).getData();
+            System.arraycopy(pixels, 0, this.pixels, 0, this.pixels.length);
+        } else {
+            ColorModel cm = ColorModel.getRGBdefault();
+            argb = new BufferedImage(cm, Raster.createWritableRaster(cm.createCompatibleSampleModel(width, height),
+                    new DataBufferInt(pixels, pixels.length), null), false, null);
+            this.pixels = pixels;
+            readOnly = true;
+        }
+        convertedRows = height;
+        pixelCount = this.pixels.length;
+    }
+
+    /**
+     * Nothing to release, the pixels are kept in memory until the image is garbage collected.
+     */
+    @Override
+    public void close(){
+    }
+
+    /**
+     * Get the number of pixels of the whole image, even if only its top rows were loaded by LoadTop.
+     * @return number of pixels
+     */
+    public long GetPixelCount(){
+        return pixelCount;
+    }
+
+    /**
+     * Get the width of the image.
+     * @return width in pixels
+     */
+    public int GetWidth(){
+        return width;
+    }
+
+    /**
+     * Get the height of the image.
+     * @return height in pixels
+     */
+    public int GetHeight(){
+        return height;
     }
 
     /**
      * Write the image to disk. The image is written as a png file.
+     * Rows not converted yet are converted first, then the BufferedImage backing `pixels` is written directly.
      * @throws IOException if the image cannot be written
      */
     public void Write() throws IOException {
-        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        img.setRGB(0,0,width, height, pixels, 0, width);
-        // prepend steg_ to the img name and save in png format
+        CheckComplete();
+        EnsurePixels(pixels.length);
+        File output = new File(OutputPath(path));
+        try (Metrics.Timer timer = Metrics.GLOBAL.Start(Metrics.Phase.WRITE)){
+            ImageIO.write(argb, "png", output);
+            timer.Count(4L * pixels.length, pixels.length);
+        }
+    }
+
+    /**
+     * Write the image as png to a stream instead of a file.
+     * @param out stream the image is written to. The stream is not closed.
+     * @throws IOException if the image cannot be written
+     */
+    public void Write(OutputStream out) throws IOException {
+        CheckComplete();
+        EnsurePixels(pixels.length);
+        try (Metrics.Timer timer = Metrics.GLOBAL.Start(Metrics.Phase.WRITE)){
+            ImageIO.write(argb, "png", out);
+            timer.Count(4L * pixels.length, pixels.length);
+        }
+    }
+
+    /**
+     * Write the image to disk as a png file encoded by `writer` instead of ImageIO.
+     * @param writer png encoder settings
+     * @throws IOException if the image cannot be written
+     */
+    public void Write(PngWriter writer) throws IOException {
+        CheckComplete();            // before the output file is created
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(OutputPath(path)), 1 << 16)){
+            Write(out, writer);
+        }
+    }
+
+    /**
+     * Write the image as png encoded by `writer` to a stream.
+     * @param out stream the image is written to. The stream is not closed.
+     * @param writer png encoder settings
+     * @throws IOException if the image cannot be written
+     */
+    public void Write(OutputStream out, PngWriter writer) throws IOException {
+        CheckComplete();
+        EnsurePixels(pixels.length);
+        try (Metrics.Timer timer = Metrics.GLOBAL.Start(Metrics.Phase.WRITE)){
+            writer.Write(pixels, width, height, out);
+            timer.Count(4L * pixels.length, pixels.length);
+        }
+    }
+
+    /**
+     * Make sure the whole image is loaded before it is written.
+     * @throws IOException if only the top rows were loaded by LoadTop
+     */
+    private void CheckComplete() throws IOException{
+        if (pixelCount != pixels.length){
+            throw new IOException("Only the top rows of " + path + " were loaded, it cannot be written.");
+        }
+    }
+
+    /**
+     * Get the path Write saves an image loaded from `path` to: steg_ is prepended to the image name and
+     * the extension is changed to png.
+     * @param path path to the original image
+     * @return path to the written image
+     */
+    public static String OutputPath(String path){
         String newImgPath = path.substring(0, path.lastIndexOf(File.separator)+1) +
                 "steg_" + path.substring(path.lastIndexOf(File.separator)+1);
-        newImgPath = newImgPath.substring(0, newImgPath.lastIndexOf(".")) + ".png";
-        File output = new File(newImgPath);
-        ImageIO.write(img, "png", output);
+        return newImgPath.substring(0, newImgPath.lastIndexOf(".")) + ".png";
     }
 }
@@ -0,0 +1,362 @@
+package cz.cuni.mff.hrbanh.steganography;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipException;
+
+/**
+ * Long-running HTTP server on localhost which keeps the JVM warm between requests and handles them concurrently
+ * on a pool of worker threads. It offers the same operations as the command line, but returns the results
+ * in the response instead of writing files. Images are given as paths on the local disk.
+ *      GET  /capacities?image=PATH_TO_IMAGE
+ *          - capacity in bytes for every bits per byte, one "BITS_PER_BYTE CAPACITY" pair per line
+ *      POST /hide?image=PATH_TO_IMAGE&name=FILE_NAME&bits=BITS_PER_BYTE[&compress=COMPRESSION_LEVEL]
+ *          - hides the request body as a file named FILE_NAME, compressed if a level is given,
+ *            BITS_PER_BYTE "auto" uses the lowest value the file fits with (once compressed),
+ *            responds with the png image, encoded by PngWriter.FAST or by PngWriter settings given as
+ *            &png=LEVEL[,FILTER], or with the PAM image if the image is a PAM image
+ *      GET  /extract?image=PATH_TO_IMAGE[&entry=FILE_NAME]
+ *          - responds with the hidden file, or with the file FILE_NAME of a hidden archive,
+ *            its name is in the X-File-Name header. The whole hidden file (or archive) is verified
+ *            first, so a corrupted file is answered with status 400 instead of being sent
+ *      GET  /list?image=PATH_TO_IMAGE
+ *          - files of a hidden archive, one "FILE_NAME LENGTH" pair per line
+ *      GET  /verify?image=PATH_TO_IMAGE
+ *          - decodes the hidden file without sending it and checks its checksum, responds with its metadata,
+ *            or with status 400 if the checksum does not match
+ *      GET  /stats
+ *          - statistics of the cache of decoded images
+ *      GET  /metrics
+ *          - time, bytes, pixels, throughput and allocation of each processing phase as JSON, see Metrics
+ * Images are opened through an ImageCache, so repeated requests for the same image decode it only once. PAM images
+ * are mapped instead (see MappedCarrier).
+ * Invalid requests are answered with status 400, missing images with 404. A request body shorter than its
+ * Content-Length and corrupted compressed data are invalid requests too.
+ * Requests whose Host header is not localhost, 127.0.0.1 or [::1] (with the port of the server) are refused with
+ * status 403, so that a web page which rebinds its domain name to the loopback address cannot read local files
+ * through the server.
+ */
+public final class StegServer {
+    private final HttpServer server;
+    private final ExecutorService pool;
+    private final ImageCache cache;
+
+    /**
+     * Create a server listening on the loopback address. It is not started yet.
+     * @param port port to listen on
+     * @param threads number of worker threads handling requests
+     * @param cache cache the images are loaded through
+     * @throws IOException if the port cannot be bound
+     */
+    public StegServer(int port, int threads, ImageCache cache) throws IOException{
+        this.cache = cache;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        server.setExecutor(pool);
+        server.createContext("/capacities", exchange -> Handle(exchange, "GET", this::Capacities));
+        server.createContext("/hide", exchange -> Handle(exchange, "POST", this::Hide));
+        server.createContext("/extract", exchange -> Handle(exchange, "GET", this::Extract));
+        server.createContext("/list", exchange -> Handle(exchange, "GET", this::List));
+        server.createContext("/verify", exchange -> Handle(exchange, "GET", this::Verify));
+        server.createContext("/stats", exchange -> Handle(exchange, "GET",
+                (ex, query) -> SendText(ex, 200, cache.Stats() + "\n")));
+        server.createContext("/metrics", exchange -> Handle(exchange, "GET",
+                (ex, query) -> Send(ex, 200, "application/json", Metrics.GLOBAL.getJson() + "\n")));
+    }
+
+    /**
+     * Start handling requests in the background.
+     */
+    public void Start(){
+        server.start();
+    }
+
+    /**
+     * Stop the server, waiting at most `delay` seconds for running requests to finish.
+     * @param delay seconds to wait
+     */
+    public void Stop(int delay){
+        server.stop(delay);
+        pool.shutdown();
+    }
+
+    /**
+     * Get the address the server listens on.
+     * @return address and port
+     */
+    public InetSocketAddress GetAddress(){
+        return server.getAddress();
+    }
+
+    /**
+     * Operation behind one endpoint.
+     */
+    private interface Handler {
+        void Run(HttpExchange exchange, Map<String, String> query) throws IOException;
+    }
+
+    /**
+     * Check the request method, parse the query and run the handler, converting exceptions to error responses.
+     */
+    private void Handle(HttpExchange exchange, String method, Handler handler){
+        try (exchange) {
+            try {
+                if (!IsLocalHost(exchange.getRequestHeaders().getFirst("Host"))){
+                    SendText(exchange, 403, "Host must be localhost\n");
+                    return;
+                }
+                if (!exchange.getRequestMethod().equals(method)){
+                    SendText(exchange, 405, "Use " + method + "\n");
+                    return;
+                }
+                handler.Run(exchange, ParseQuery(exchange.getRequestURI().getRawQuery()));
+            } catch (FileNotFoundException | NoSuchFileException e){
+                SendText(exchange, 404, "Not found: " + e.getMessage() + "\n");
+            } catch (IllegalArgumentException e){
+                SendText(exchange, 400, e.getMessage() + "\n");
+            } catch (EOFException | ZipException e){
+                // the request body is shorter than its Content-Length, or the hidden file is corrupted
+                SendText(exchange, 400, "Truncated or corrupted data: " + e.getMessage() + "\n");
+            } catch (IOException | RuntimeException e){
+                SendText(exchange, 500, e + "\n");
+            }
+        } catch (IOException e){
+            // the response could not be sent, the client has most likely disconnected
+        }
+    }
+
+    /**
+     * Check whether a Host header names the loopback address this server listens on.
+     */
+    private boolean IsLocalHost(String host){
+        if (host == null){
+            return false;
+        }
+        String name = host;
+        int colon = host.lastIndexOf(':');
+        if (colon >= 0 && colon > host.lastIndexOf(']')){
+            name = host.substring(0, colon);
+            if (!host.substring(colon + 1).equals(String.valueOf(server.getAddress().getPort()))){
+                return false;
+            }
+        }
+        name = name.toLowerCase(Locale.ROOT);
+        return name.equals("localhost") || name.equals("127.0.0.1") || name.equals("[::1]");
+    }
+
+    private void Capacities(HttpExchange exchange, Map<String, String> query) throws IOException{
+        int[] size = StegImage.ReadSize(Require(query, "image"));     // no pixels are needed
+        long[] capacities = StegImage.Capacities((long)size[0] * size[1]);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < capacities.length; i++){
+            sb.append(i + 1).append(' ').append(capacities[i]).append('\n');
+        }
+        SendText(exchange, 200, sb.toString());
+    }
+
+    private void Hide(HttpExchange exchange, Map<String, String> query) throws IOException{
+        String imgPath = Require(query, "image");
+        int bitsPerByte = HidePlan.ParseBitsPerByte(Require(query, "bits"));
+        String name = query.getOrDefault("name", "payload");
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        int compressionLevel = query.containsKey("compress") ? Integer.parseInt(query.get("compress")) :
+                HiddenFile.UNCOMPRESSED;
+        boolean compressed = compressionLevel != HiddenFile.UNCOMPRESSED;
+        boolean pam = MappedCarrier.IsPam(imgPath);
+        // a PAM image is copied before the file is hidden, so it is planned too, a file which does not fit must not
+        // cost a copy
+        boolean plan = bitsPerByte == HidePlan.AUTO || pam;
+        InputStream body = RequestBody(exchange);
+        // the body can be read only once, it is kept in memory if it has to be compressed for planning
+        byte[] data = contentLength == null || (plan && compressed) ? body.readAllBytes() : null;
+        if (plan){
+            long length = data == null ? Long.parseLong(contentLength) :
+                    compressed ? HiddenFile.CompressedLength(new ByteArrayInputStream(data), compressionLevel) :
+                    data.length;
+            HidePlan hidePlan = HidePlan.Create(imgPath, name, length);
+            if (bitsPerByte == HidePlan.AUTO){
+                bitsPerByte = hidePlan.bitsPerByte;
+            } else {
+                hidePlan.CheckFits(bitsPerByte);
+            }
+        }
+        HiddenFile hf;
+        if (data == null){
+            hf = new HiddenFile(name, body, Long.parseLong(contentLength), bitsPerByte,
+                    compressionLevel);
+        } else {
+            hf = new HiddenFile(name, new ByteArrayInputStream(data), data.length, bitsPerByte,
+                    compressionLevel);
+        }
+        if (pam){
+            HideInPam(exchange, imgPath, hf);
+            return;
+        }
+        StegImage img = cache.Load(imgPath);
+        hf.HideInImage(img, true);
+        exchange.getResponseHeaders().set("Content-Type", "image/png");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()){
+            img.Write(out, query.containsKey("png") ? PngWriter.Parse(query.get("png"), true) : PngWriter.FAST);
+        }
+    }
+
+    /**
+     * Hide a file in a temporary copy of a PAM image (see MappedCarrier.OpenCopy) and respond with the copy.
+     * The original image is not modified and the copy is deleted once it is sent.
+     */
+    private static void HideInPam(HttpExchange exchange, String imgPath, HiddenFile hf) throws IOException{
+        Path copy = Files.createTempFile("steg_", ".pam");
+        try {
+            try (MappedCarrier carrier = MappedCarrier.OpenCopy(imgPath, copy)){
+                hf.HideInImage(carrier, true);
+            }
+            exchange.getResponseHeaders().set("Content-Type", "image/x-portable-arbitrarymap");
+            exchange.sendResponseHeaders(200, Files.size(copy));
+            try (OutputStream out = exchange.getResponseBody()){
+                Files.copy(copy, out);
+            }
+        } finally {
+            Files.deleteIfExists(copy);
+        }
+    }
+
+    private void Extract(HttpExchange exchange, Map<String, String> query) throws IOException{
+        try (Carrier img = cache.Open(Require(query, "image"))){
+            Extract(exchange, query, img);
+        }
+    }
+
+    private static void Extract(HttpExchange exchange, Map<String, String> query, Carrier img) throws IOException{
+        // the status cannot be changed once the data is being sent, so the checksum is checked first
+        HiddenFileHeader header = HiddenFile.Verify(img, true);
+        if (header.archive){
+            HiddenArchive.Entry entry = HiddenArchive.Find(HiddenArchive.ReadIndex(img, header),
+                    Require(query, "entry"));
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.getResponseHeaders().set("X-File-Name", entry.name);
+            exchange.sendResponseHeaders(200, entry.length == 0 ? -1 : entry.length);
+            try (OutputStream out = exchange.getResponseBody()){
+                HiddenArchive.Extract(img, header, entry, out, true);
+            }
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        exchange.getResponseHeaders().set("X-File-Name", header.fileName);
+        // the length of decompressed data is not stored, compressed files are sent in chunks
+        exchange.sendResponseHeaders(200, header.compressed ? 0 : header.dataLength == 0 ? -1 : header.dataLength);
+        try (OutputStream out = exchange.getResponseBody()){
+            HiddenFile.ExtractFromImage(img, header, out, true);
+        }
+    }
+
+    private void List(HttpExchange exchange, Map<String, String> query) throws IOException{
+        StringBuilder sb = new StringBuilder();
+        try (Carrier img = cache.Open(Require(query, "image"))){
+            for (HiddenArchive.Entry entry : HiddenArchive.ReadIndex(img)){
+                sb.append(entry.name).append(' ').append(entry.length).append('\n');
+            }
+        }
+        SendText(exchange, 200, sb.toString());
+    }
+
+    private void Verify(HttpExchange exchange, Map<String, String> query) throws IOException{
+        HiddenFileHeader header;
+        try (Carrier img = cache.Open(Require(query, "image"))){
+            header = HiddenFile.Verify(img, true);
+        }
+        SendText(exchange, 200, header + "\n");
+    }
+
+    /**
+     * Get the request body. The stream of HttpServer reports a body shorter than its Content-Length by a plain
+     * IOException, it is rethrown as EOFException, so that it is answered with status 400.
+     */
+    private static InputStream RequestBody(HttpExchange exchange){
+        return new FilterInputStream(exchange.getRequestBody()){
+            @Override
+            public int read() throws IOException{
+                try {
+                    return super.read();
+                } catch (EOFException e){
+                    throw e;
+                } catch (IOException e){
+                    throw Truncated(e);
+                }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException{
+                try {
+                    return super.read(b, off, len);
+                } catch (EOFException e){
+                    throw e;
+                } catch (IOException e){
+                    throw Truncated(e);
+                }
+            }
+
+            private EOFException Truncated(IOException cause){
+                EOFException e = new EOFException("Request body is shorter than Content-Length");
+                e.initCause(cause);
+                return e;
+            }
+        };
+    }
+
+    private static String Require(Map<String, String> query, String name){
+        String value = query.get(name);
+        if (value == null){
+            throw new IllegalArgumentException("Missing query parameter " + name);
+        }
+        return value;
+    }
+
+    private static Map<String, String> ParseQuery(String rawQuery){
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null){
+            return query;
+        }
+        for (String pair : rawQuery.split("&")){
+            int eq = pair.indexOf('=');
+            if (eq > 0){
+                query.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return query;
+    }
+
+    private static void SendText(HttpExchange exchange, int status, String text) throws IOException{
+        Send(exchange, status, "text/plain", text);
+    }
+
+    private static void Send(HttpExchange exchange, int status, String contentType, String text) throws IOException{
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()){
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package cz.cuni.mff.hrbanh.steganography;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Kernels of BitPacker built on the Vector API (jdk.incubator.vector), which process whole pixel pairs.
+ * A pair of pixels carries exactly bitsPerByte bytes of the data stream, read or written as one little-endian long,
+ * so the groups of both pixels are known without the bit accumulator of the scalar kernels. The groups of a chunk
+ * of pixels are first spread into an int array, one group per lane, and the clear-and-set of the least-significant
+ * bits (BitPacker.Spread and Gather) is then applied to as many pixels per instruction as the CPU has int lanes.
+ * The output is identical to the scalar kernels.
+ * This class is loaded only if the jdk.incubator.vector module is present (see BitPacker.VECTORIZED), so the program
+ * still runs without `--add-modules jdk.incubator.vector`.
+ */
+final class VectorPacker {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    /**
+     * Number of pixels whose groups are spread into the lane buffer at once, a multiple of the number of lanes.
+     */
+    private static final int CHUNK = 1024;
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private VectorPacker(){}
+
+    /**
+     * Hide `pairs` * bitsPerByte bytes of `src` starting at `offset` in 2 * `pairs` pixels starting at pixel `p`,
+     * the first byte going to the least-significant bits of pixel `p`.
+     */
+    static void PackPairs(byte[] src, int offset, int pairs, int[] pixels, int p, int bitsPerByte){
+        int groupBits = BitPacker.BitsPerPixel(bitsPerByte);
+        int mask = (1 << bitsPerByte) - 1;
+        int clear = ~(mask * 0x01010101);
+        int[] groups = new int[CHUNK];
+        int i = offset;
+        int end = p + 2 * pairs;
+        while (p < end){
+            int n = Math.min(CHUNK, end - p);
+            for (int k = 0; k < n; k += 2){
+                long pair = ReadPair(src, i, bitsPerByte);
+                groups[k] = (int)pair;
+                groups[k + 1] = (int)(pair >>> groupBits);
+                i += bitsPerByte;
+            }
+            int k = 0;
+            for (int bound = SPECIES.loopBound(n); k < bound; k += SPECIES.length()){
+                IntVector group = IntVector.fromArray(SPECIES, groups, k);
+                IntVector pixel = IntVector.fromArray(SPECIES, pixels, p + k);
+                pixel.and(clear).or(Spread(group, bitsPerByte, mask)).intoArray(pixels, p + k);
+            }
+            for (; k < n; k++){
+                pixels[p + k] = (pixels[p + k] & clear) | BitPacker.Spread(groups[k], bitsPerByte);
+            }
+            p += n;
+        }
+    }
+
+    /**
+     * Inverse of PackPairs. Recover `pairs` * bitsPerByte bytes from 2 * `pairs` pixels starting at pixel `p` and
+     * store them in `dst` starting at `offset`. No byte of `dst` after the recovered ones is written.
+     */
+    static void UnpackPairs(int[] pixels, int p, int bitsPerByte, byte[] dst, int offset, int pairs){
+        int groupBits = BitPacker.BitsPerPixel(bitsPerByte);
+        int mask = (1 << bitsPerByte) - 1;
+        int[] groups = new int[CHUNK];
+        int i = offset;
+        int end = offset + pairs * bitsPerByte;
+        int last = p + 2 * pairs;
+        while (p < last){
+            int n = Math.min(CHUNK, last - p);
+            int k = 0;
+            for (int bound = SPECIES.loopBound(n); k < bound; k += SPECIES.length()){
+                Gather(IntVector.fromArray(SPECIES, pixels, p + k), bitsPerByte, mask).intoArray(groups, k);
+            }
+            for (; k < n; k++){
+                groups[k] = BitPacker.Gather(pixels[p + k], bitsPerByte);
+            }
+            for (k = 0; k < n; k += 2){
+                WritePair(dst, i, end, (groups[k] & 0xFFFFFFFFL) | (long)groups[k + 1] << groupBits, bitsPerByte);
+                i += bitsPerByte;
+            }
+            p += n;
+        }
+    }
+
+    /**
+     * Lanewise BitPacker.Spread.
+     */
+    private static IntVector Spread(IntVector group, int bitsPerByte, int mask){
+        if (bitsPerByte == 8){
+            return group;
+        }
+        return group.and(mask)
+                .or(group.lanewise(VectorOperators.LSHR, bitsPerByte).and(mask).lanewise(VectorOperators.LSHL, 8))
+                .or(group.lanewise(VectorOperators.LSHR, 2 * bitsPerByte).and(mask)
+                        .lanewise(VectorOperators.LSHL, 16))
+                .or(group.lanewise(VectorOperators.LSHR, 3 * bitsPerByte).and(mask)
+                        .lanewise(VectorOperators.LSHL, 24));
+    }
+
+    /**
+     * Lanewise BitPacker.Gather.
+     */
+    private static IntVector Gather(IntVector pixel, int bitsPerByte, int mask){
+        if (bitsPerByte == 8){
+            return pixel;
+        }
+        return pixel.and(mask)
+                .or(pixel.lanewise(VectorOperators.LSHR, 8).and(mask).lanewise(VectorOperators.LSHL, bitsPerByte))
+                .or(pixel.lanewise(VectorOperators.LSHR, 16).and(mask)
+                        .lanewise(VectorOperators.LSHL, 2 * bitsPerByte))
+                .or(pixel.lanewise(VectorOperators.LSHR, 24).and(mask)
+                        .lanewise(VectorOperators.LSHL, 3 * bitsPerByte));
+    }
+
+    /**
+     * Read bitsPerByte bytes at index `i` as a little-endian number. Bits above 8 * bitsPerByte may contain
+     * the following bytes, Spread ignores them.
+     */
+    private static long ReadPair(byte[] src, int i, int bitsPerByte){
+        if (i + 8 <= src.length){
+            return (long)LONG.get(src, i);
+        }
+        long pair = 0;
+        for (int j = 0; j < bitsPerByte; j++){
+            pair |= (long)(src[i + j] & 0xFF) << 8 * j;
+        }
+        return pair;
+    }
+
+    /**
+     * Write the lowest bitsPerByte bytes of `pair` at index `i`, without writing at or after index `end`.
+     * A whole long is written when it fits, the extra bytes are overwritten by the following pair.
+     */
+    private static void WritePair(byte[] dst, int i, int end, long pair, int bitsPerByte){
+        if (i + 8 <= end){
+            LONG.set(dst, i, pair);
+            return;
+        }
+        for (int j = 0; j < bitsPerByte; j++){
+            dst[i + j] = (byte)(pair >>> 8 * j);
+        }
+    }
+}
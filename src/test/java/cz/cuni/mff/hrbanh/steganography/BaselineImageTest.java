@@ -0,0 +1,56 @@
+package cz.cuni.mff.hrbanh.steganography;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Images produced by the first version of the program, which stored no flags and no checksum, must still be read.
+ * baseline_steg_red.png is red.png with minesweeper.py hidden by that version using 3 bits per byte.
+ */
+class BaselineImageTest {
+    private static Path Resource(String name) throws URISyntaxException{
+        return Path.of(BaselineImageTest.class.getResource("/" + name).toURI());
+    }
+
+    private static void AssertHiddenFile(HiddenFileHeader header) throws Exception{
+        assertEquals("minesweeper.py", header.fileName);
+        assertEquals(3, header.bitsPerByte);
+        assertEquals(Files.size(Resource("minesweeper.py")), header.dataLength);
+        assertFalse(header.compressed);
+        assertFalse(header.archive);
+        assertFalse(header.hasChecksum);
+    }
+
+    @Test
+    void ExtractsFileHiddenByBaseline() throws Exception{
+        byte[] expected = Files.readAllBytes(Resource("minesweeper.py"));
+        for (boolean lazy : new boolean[]{false, true}){
+            StegImage img = new StegImage(Resource("baseline_steg_red.png").toString(), lazy);
+            HiddenFileHeader header = HiddenFileHeader.Read(img);
+            AssertHiddenFile(header);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            HiddenFile.ExtractFromImage(img, header, out, false);
+            assertArrayEquals(expected, out.toByteArray());
+            // without a checksum only the header can be verified
+            assertFalse(HiddenFile.Verify(img, true).hasChecksum);
+        }
+    }
+
+    @Test
+    void ProbesHeaderHiddenByBaseline() throws Exception{
+        AssertHiddenFile(HiddenFileHeader.Probe(Resource("baseline_steg_red.png").toString()));
+    }
+
+    @Test
+    void OriginalImageHasNoHiddenFile() throws URISyntaxException, IOException{
+        StegImage img = new StegImage(Resource("red.png").toString());
+        assertThrows(IllegalArgumentException.class, () -> HiddenFileHeader.Read(img));
+    }
+}
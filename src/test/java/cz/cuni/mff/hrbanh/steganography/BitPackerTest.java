@@ -0,0 +1,145 @@
+package cz.cuni.mff.hrbanh.steganography;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Round trips of the scalar, vector and parallel kernels of BitPacker. Every kernel must produce exactly the same
+ * pixels as PackScalar, for every bitsPerByte, odd lengths and streams written in several parts.
+ */
+class BitPackerTest {
+    private static final int[] LENGTHS = {1, 3, 7, 255, 257, 1001, 4099};
+    private static final long[] STREAM_OFFSETS = {0, 1, 5, 13};
+    private static final int FIRST_PIXEL = 7;
+
+    private final Random random = new Random(42);
+
+    private byte[] RandomBytes(int length){
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private int[] RandomPixels(long count){
+        int[] pixels = new int[(int)count];
+        for (int i = 0; i < pixels.length; i++){
+            pixels[i] = random.nextInt();
+        }
+        return pixels;
+    }
+
+    private static int PixelsNeeded(long streamOffset, int length, int bitsPerByte){
+        return (int)(FIRST_PIXEL + BitPacker.PixelsFor(streamOffset + length, bitsPerByte) + 5);
+    }
+
+    @Test
+    void VectorKernelsAreTested(){
+        assertTrue(BitPacker.VECTORIZED, "run the tests with --add-modules jdk.incubator.vector, see pom.xml");
+    }
+
+    @Test
+    void PackMatchesScalarKernel(){
+        for (int bitsPerByte = 1; bitsPerByte <= 8; bitsPerByte++){
+            for (int length : LENGTHS){
+                for (long streamOffset : STREAM_OFFSETS){
+                    byte[] data = RandomBytes(length + 3);
+                    int[] original = RandomPixels(PixelsNeeded(streamOffset, length, bitsPerByte));
+                    int[] scalar = original.clone();
+                    int[] vector = original.clone();
+                    int[] parallel = original.clone();
+                    int end = BitPacker.PackScalar(data, 3, length, scalar, FIRST_PIXEL, bitsPerByte, streamOffset);
+                    assertEquals(end, BitPacker.Pack(data, 3, length, vector, FIRST_PIXEL, bitsPerByte, streamOffset));
+                    assertEquals(end, BitPacker.PackParallel(data, 3, length, parallel, FIRST_PIXEL, bitsPerByte,
+                            streamOffset));
+                    String context = "bitsPerByte " + bitsPerByte + ", length " + length + ", offset " + streamOffset;
+                    assertArrayEquals(scalar, vector, context);
+                    assertArrayEquals(scalar, parallel, context);
+                    assertEquals(FIRST_PIXEL + BitPacker.PixelsFor(streamOffset + length, bitsPerByte), end, context);
+                    // pixels after the stream are left untouched
+                    assertArrayEquals(Arrays.copyOfRange(original, end, original.length),
+                            Arrays.copyOfRange(scalar, end, scalar.length), context);
+                }
+            }
+        }
+    }
+
+    @Test
+    void UnpackRoundTrip(){
+        for (int bitsPerByte = 1; bitsPerByte <= 8; bitsPerByte++){
+            for (int length : LENGTHS){
+                for (long streamOffset : STREAM_OFFSETS){
+                    byte[] data = RandomBytes(length);
+                    int[] pixels = RandomPixels(PixelsNeeded(streamOffset, length, bitsPerByte));
+                    BitPacker.Pack(data, 0, length, pixels, FIRST_PIXEL, bitsPerByte, streamOffset);
+                    String context = "bitsPerByte " + bitsPerByte + ", length " + length + ", offset " + streamOffset;
+                    byte[] scalar = new byte[length + 2];
+                    byte[] vector = new byte[length + 2];
+                    byte[] parallel = new byte[length + 2];
+                    BitPacker.UnpackScalar(pixels, FIRST_PIXEL, bitsPerByte, streamOffset, scalar, 2, length);
+                    BitPacker.Unpack(pixels, FIRST_PIXEL, bitsPerByte, streamOffset, vector, 2, length);
+                    BitPacker.UnpackParallel(pixels, FIRST_PIXEL, bitsPerByte, streamOffset, parallel, 2, length);
+                    assertArrayEquals(data, Arrays.copyOfRange(scalar, 2, length + 2), context);
+                    assertArrayEquals(data, Arrays.copyOfRange(vector, 2, length + 2), context);
+                    assertArrayEquals(data, Arrays.copyOfRange(parallel, 2, length + 2), context);
+                }
+            }
+        }
+    }
+
+    @Test
+    void StreamWrittenInPartsMatchesOneCall(){
+        int length = 5003;
+        int[] splits = {1, 2, 9, 256, 2500, 5002};
+        for (int bitsPerByte = 1; bitsPerByte <= 8; bitsPerByte++){
+            byte[] data = RandomBytes(length);
+            int[] original = RandomPixels(PixelsNeeded(0, length, bitsPerByte));
+            int[] whole = original.clone();
+            BitPacker.PackScalar(data, 0, length, whole, FIRST_PIXEL, bitsPerByte, 0);
+            for (int split : splits){
+                int[] parts = original.clone();
+                BitPacker.Pack(data, 0, split, parts, FIRST_PIXEL, bitsPerByte, 0);
+                BitPacker.Pack(data, split, length - split, parts, FIRST_PIXEL, bitsPerByte, split);
+                assertArrayEquals(whole, parts, "bitsPerByte " + bitsPerByte + ", split " + split);
+
+                byte[] head = new byte[split];
+                byte[] tail = new byte[length - split];
+                BitPacker.Unpack(whole, FIRST_PIXEL, bitsPerByte, 0, head, 0, split);
+                BitPacker.Unpack(whole, FIRST_PIXEL, bitsPerByte, split, tail, 0, length - split);
+                assertArrayEquals(Arrays.copyOfRange(data, 0, split), head);
+                assertArrayEquals(Arrays.copyOfRange(data, split, length), tail);
+            }
+        }
+    }
+
+    @Test
+    void ParallelKernelsSplitLargeData(){
+        int length = BitPacker.PARALLEL_THRESHOLD + 12345;
+        for (int bitsPerByte = 1; bitsPerByte <= 8; bitsPerByte++){
+            long streamOffset = bitsPerByte + 2;
+            byte[] data = RandomBytes(length);
+            int[] original = RandomPixels(PixelsNeeded(streamOffset, length, bitsPerByte));
+            int[] scalar = original.clone();
+            int[] parallel = original.clone();
+            BitPacker.PackScalar(data, 0, length, scalar, FIRST_PIXEL, bitsPerByte, streamOffset);
+            BitPacker.PackParallel(data, 0, length, parallel, FIRST_PIXEL, bitsPerByte, streamOffset);
+            assertArrayEquals(scalar, parallel, "bitsPerByte " + bitsPerByte);
+
+            byte[] unpacked = new byte[length];
+            BitPacker.UnpackParallel(parallel, FIRST_PIXEL, bitsPerByte, streamOffset, unpacked, 0, length);
+            assertArrayEquals(data, unpacked, "bitsPerByte " + bitsPerByte);
+        }
+    }
+
+    @Test
+    void DataLargerThanPixelsIsRejected(){
+        int[] pixels = new int[10];
+        byte[] data = new byte[100];
+        assertThrows(IllegalArgumentException.class, () -> BitPacker.PackScalar(data, 0, 100, pixels, 0, 1, 0));
+        assertThrows(IllegalArgumentException.class, () -> BitPacker.Pack(data, 0, 100, pixels, 0, 8, 0));
+        assertThrows(IllegalArgumentException.class, () -> BitPacker.Unpack(pixels, 0, 1, 0, data, 0, 100));
+    }
+}
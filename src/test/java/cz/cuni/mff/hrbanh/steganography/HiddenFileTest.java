@@ -0,0 +1,213 @@
+package cz.cuni.mff.hrbanh.steganography;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Hiding a file and extracting it again, from in-memory images and mapped PAM images, plain, compressed and
+ * as an archive, and rejecting corrupted data by its checksum.
+ */
+class HiddenFileTest {
+    private static final int WIDTH = 97;
+    private static final int HEIGHT = 83;
+
+    @TempDir
+    Path dir;
+
+    private final Random random = new Random(7);
+
+    private StegImage RandomImage(){
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++){
+            pixels[i] = random.nextInt();
+        }
+        return new StegImage(dir.resolve("image.png").toString(), WIDTH, HEIGHT, pixels, true);
+    }
+
+    private Path RandomFile(String name, int length) throws IOException{
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return Files.write(dir.resolve(name), data);
+    }
+
+    private Path TextFile(String name, int lines) throws IOException{
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++){
+            sb.append("line ").append(i).append(" of a file which compresses well\n");
+        }
+        return Files.writeString(dir.resolve(name), sb.toString());
+    }
+
+    private static byte[] Extract(Carrier img, boolean parallel) throws IOException{
+        HiddenFileHeader header = HiddenFileHeader.Read(img);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HiddenFile.ExtractFromImage(img, header, out, parallel);
+        return out.toByteArray();
+    }
+
+    @Test
+    void PlainRoundTrip() throws IOException{
+        for (int bitsPerByte = 1; bitsPerByte <= 8; bitsPerByte++){
+            Path file = RandomFile("data.bin", 1001 * bitsPerByte);
+            StegImage img = RandomImage();
+            new HiddenFile(file.toString(), bitsPerByte).HideInImage(img, false);
+
+            HiddenFileHeader header = HiddenFileHeader.Read(img);
+            assertEquals("data.bin", header.fileName);
+            assertEquals(bitsPerByte, header.bitsPerByte);
+            assertEquals(Files.size(file), header.dataLength);
+            assertFalse(header.compressed);
+            assertTrue(header.hasChecksum);
+            assertArrayEquals(Files.readAllBytes(file), Extract(img, false));
+            assertArrayEquals(Files.readAllBytes(file), Extract(img, true));
+        }
+    }
+
+    @Test
+    void ParallelHideMatchesSequential() throws IOException{
+        Path file = RandomFile("data.bin", 20011);
+        StegImage sequential = RandomImage();
+        StegImage parallel = new StegImage("copy.png", WIDTH, HEIGHT, sequential.pixels, true);
+        new HiddenFile(file.toString(), 5).HideInImage(sequential, false);
+        new HiddenFile(file.toString(), 5).HideInImage(parallel, true);
+        assertArrayEquals(sequential.pixels, parallel.pixels);
+    }
+
+    @Test
+    void CompressedRoundTrip() throws IOException{
+        Path file = TextFile("text.txt", 2000);
+        StegImage img = RandomImage();
+        new HiddenFile(file.toString(), 3, 9).HideInImage(img, false);
+
+        HiddenFileHeader header = HiddenFileHeader.Read(img);
+        assertTrue(header.compressed);
+        assertTrue(header.dataLength < Files.size(file));
+        try (InputStream in = Files.newInputStream(file)){
+            assertEquals(HiddenFile.CompressedLength(in, 9), header.dataLength);
+        }
+        assertArrayEquals(Files.readAllBytes(file), Extract(img, false));
+        assertEquals(header.checksum, HiddenFile.Verify(img, false).checksum);
+    }
+
+    @Test
+    void StreamRoundTrip() throws IOException{
+        byte[] data = "hidden from a stream".getBytes(StandardCharsets.UTF_8);
+        StegImage img = RandomImage();
+        new HiddenFile("stream.txt", new ByteArrayInputStream(data), data.length, 2).HideInImage(img, false);
+        assertEquals("stream.txt", HiddenFileHeader.Read(img).fileName);
+        assertArrayEquals(data, Extract(img, false));
+    }
+
+    @Test
+    void ArchiveRoundTrip() throws IOException{
+        Path first = RandomFile("first.bin", 3001);
+        Path second = TextFile("second.txt", 50);
+        Files.createDirectory(dir.resolve("other"));
+        Path empty = Files.write(dir.resolve("other").resolve("empty.txt"), new byte[0]);
+        HiddenArchive archive = new HiddenArchive(4);
+        archive.Add(first.toString());
+        archive.Add(second.toString());
+        archive.Add(empty.toString());
+        StegImage img = RandomImage();
+        archive.HideInImage(img, false);
+
+        HiddenFileHeader header = HiddenFileHeader.Read(img);
+        assertTrue(header.archive);
+        List<HiddenArchive.Entry> entries = HiddenArchive.ReadIndex(img);
+        assertEquals(3, entries.size());
+        Path[] files = {first, second, empty};
+        for (int i = 0; i < files.length; i++){
+            HiddenArchive.Entry entry = HiddenArchive.Find(entries, files[i].getFileName().toString());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            HiddenArchive.Extract(img, header, entry, out, false);
+            assertArrayEquals(Files.readAllBytes(files[i]), out.toByteArray(), entry.toString());
+        }
+        HiddenFile.Verify(img, false);
+    }
+
+    @Test
+    void ArchiveRejectsDuplicateNames() throws IOException{
+        Path first = RandomFile("same.bin", 10);
+        Files.createDirectory(dir.resolve("other"));
+        Path second = Files.write(dir.resolve("other").resolve("same.bin"), new byte[10]);
+        HiddenArchive archive = new HiddenArchive(4);
+        archive.Add(first.toString());
+        assertThrows(IllegalArgumentException.class, () -> archive.Add(second.toString()));
+    }
+
+    @Test
+    void PamRoundTrip() throws IOException{
+        Path pam = dir.resolve("image.pam");
+        MappedCarrier.Save(RandomImage(), pam.toString());
+        byte[] original = Files.readAllBytes(pam);
+        Path file = RandomFile("data.bin", 7777);
+
+        try (MappedCarrier carrier = MappedCarrier.OpenCopy(pam.toString())){
+            new HiddenFile(file.toString(), 6).HideInImage(carrier, false);
+        }
+        Path steg = Path.of(MappedCarrier.OutputPath(pam.toString()));
+        assertArrayEquals(original, Files.readAllBytes(pam), "the original image must not be modified");
+        assertEquals(Files.size(pam), Files.size(steg));
+        try (MappedCarrier carrier = MappedCarrier.Open(steg.toString(), false)){
+            assertEquals(WIDTH, carrier.GetWidth());
+            assertEquals(HEIGHT, carrier.GetHeight());
+            assertArrayEquals(Files.readAllBytes(file), Extract(carrier, false));
+            assertArrayEquals(Files.readAllBytes(file), Extract(carrier, true));
+        }
+        assertEquals("data.bin", HiddenFileHeader.Probe(steg.toString()).fileName);
+    }
+
+    @Test
+    void CorruptedDataIsRejected() throws IOException{
+        Path file = RandomFile("data.bin", 4000);
+        StegImage img = RandomImage();
+        new HiddenFile(file.toString(), 2).HideInImage(img, false);
+        HiddenFileHeader header = HiddenFileHeader.Read(img);
+        int pixel = (int)(HiddenFile.HEADER_PIXELS + BitPacker.PixelsFor(header.dataOffset + 1000, 2));
+        img.pixels[pixel] ^= 1;
+
+        assertThrows(IllegalArgumentException.class, () -> Extract(img, false));
+        assertThrows(IllegalArgumentException.class, () -> HiddenFile.Verify(img, false));
+        assertThrows(IllegalArgumentException.class, () -> HiddenFile.Verify(img, true));
+    }
+
+    @Test
+    void CorruptedCompressedDataIsRejected() throws IOException{
+        Path file = TextFile("text.txt", 500);
+        StegImage img = RandomImage();
+        new HiddenFile(file.toString(), 2, 6).HideInImage(img, false);
+        HiddenFileHeader header = HiddenFileHeader.Read(img);
+        int pixel = (int)(HiddenFile.HEADER_PIXELS + BitPacker.PixelsFor(header.dataOffset + header.dataLength / 2, 2));
+        img.pixels[pixel] ^= 1;
+
+        // the inflater may detect the corruption first, otherwise the checksum does
+        Exception e = assertThrows(Exception.class, () -> Extract(img, false));
+        assertTrue(e instanceof IllegalArgumentException || e instanceof IOException, e.toString());
+        assertThrows(IllegalArgumentException.class, () -> HiddenFile.Verify(img, false));
+    }
+
+    @Test
+    void ImageWithoutHiddenFileIsRejected(){
+        StegImage img = RandomImage();
+        assertThrows(IllegalArgumentException.class, () -> HiddenFileHeader.Read(img));
+    }
+
+    @Test
+    void FileLargerThanImageIsRejected() throws IOException{
+        Path file = RandomFile("data.bin", WIDTH * HEIGHT);
+        StegImage img = RandomImage();
+        assertThrows(IOException.class, () -> new HiddenFile(file.toString(), 1).HideInImage(img, false));
+    }
+}
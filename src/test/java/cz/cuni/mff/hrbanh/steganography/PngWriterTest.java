@@ -0,0 +1,87 @@
+package cz.cuni.mff.hrbanh.steganography;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Images written by PngWriter must be decoded by ImageIO to exactly the same pixels, for every filter, with and
+ * without the alpha channel and with rows split into several segments.
+ */
+class PngWriterTest {
+    private final Random random = new Random(11);
+
+    private int[] RandomPixels(int count, boolean opaque){
+        int[] pixels = new int[count];
+        for (int i = 0; i < count; i++){
+            pixels[i] = opaque ? random.nextInt() | 0xFF000000 : random.nextInt();
+        }
+        return pixels;
+    }
+
+    /**
+     * Pixels similar to a photo, so that the filters produce different rows than for noise.
+     */
+    private static int[] GradientPixels(int width, int height){
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++){
+            for (int x = 0; x < width; x++){
+                pixels[y * width + x] = 0xFF000000 | (x & 0xFF) << 16 | (y & 0xFF) << 8 | ((x + y) / 2 & 0xFF);
+            }
+        }
+        return pixels;
+    }
+
+    private static void AssertDecodesTo(PngWriter writer, int[] pixels, int width, int height) throws IOException{
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.Write(pixels, width, height, out);
+        BufferedImage img = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        assertNotNull(img, "ImageIO cannot decode the png");
+        assertEquals(width, img.getWidth());
+        assertEquals(height, img.getHeight());
+        assertArrayEquals(pixels, img.getRGB(0, 0, width, height, null, 0, width));
+    }
+
+    @Test
+    void EveryFilterDecodes() throws IOException{
+        int width = 131;
+        int height = 67;
+        for (PngWriter.Filter filter : PngWriter.Filter.values()){
+            AssertDecodesTo(new PngWriter(6, filter, true, false), RandomPixels(width * height, false), width, height);
+            AssertDecodesTo(new PngWriter(6, filter, true, false), RandomPixels(width * height, true), width, height);
+            AssertDecodesTo(new PngWriter(1, filter, false, false), GradientPixels(width, height), width, height);
+        }
+    }
+
+    @Test
+    void SegmentsCompressedInParallelDecode() throws IOException{
+        // more than one SEGMENT_SIZE of filtered rows
+        int width = 613;
+        int height = 3 * PngWriter.SEGMENT_SIZE / (4 * width) + 5;
+        for (PngWriter.Filter filter : PngWriter.Filter.values()){
+            AssertDecodesTo(new PngWriter(1, filter, true, true), GradientPixels(width, height), width, height);
+        }
+        AssertDecodesTo(PngWriter.DEFAULT, RandomPixels(width * height, false), width, height);
+        AssertDecodesTo(PngWriter.FAST, RandomPixels(width * height, true), width, height);
+    }
+
+    @Test
+    void TinyImagesDecode() throws IOException{
+        for (PngWriter.Filter filter : PngWriter.Filter.values()){
+            AssertDecodesTo(new PngWriter(9, filter, true, false), RandomPixels(1, false), 1, 1);
+            AssertDecodesTo(new PngWriter(0, filter, true, false), RandomPixels(3, true), 1, 3);
+        }
+    }
+
+    @Test
+    void InvalidCompressionLevelIsRejected(){
+        assertThrows(IllegalArgumentException.class, () -> new PngWriter(10, PngWriter.Filter.NONE, true, false));
+    }
+}